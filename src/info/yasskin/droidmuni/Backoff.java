@@ -0,0 +1,36 @@
+package info.yasskin.droidmuni;
+
+import java.util.Random;
+
+/**
+ * Computes jittered exponential backoff delays between retries.
+ */
+final class Backoff {
+  private final long m_base_ms;
+  private final long m_max_ms;
+  // Random is thread-safe.
+  private final Random m_random = new Random();
+
+  Backoff(long base_ms, long max_ms) {
+    m_base_ms = base_ms;
+    m_max_ms = max_ms;
+  }
+
+  /**
+   * @param attempt
+   *          The number of attempts that have already failed, starting at 1.
+   * @return How long to wait before the next attempt. The delay doubles with
+   *         each attempt up to the maximum, and is then randomized to between
+   *         half and all of that so that many clients that failed together
+   *         don't retry together.
+   */
+  long delayMs(int attempt) {
+    long delay = m_base_ms;
+    for (int i = 1; i < attempt && delay < m_max_ms; i++) {
+      delay *= 2;
+    }
+    delay = Math.min(delay, m_max_ms);
+    final long half = delay / 2;
+    return half + (long) (m_random.nextDouble() * (delay - half));
+  }
+}
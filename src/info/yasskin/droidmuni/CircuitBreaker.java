@@ -0,0 +1,87 @@
+package info.yasskin.droidmuni;
+
+/**
+ * Stops sending requests to an endpoint that keeps failing. After
+ * FAILURE_THRESHOLD consecutive failures the breaker opens, and allowRequest()
+ * returns false until it's been open for the current open period, which starts
+ * at INITIAL_OPEN_MS unless the constructor says otherwise. Then it lets
+ * a single trial request through: if that succeeds, the breaker closes again;
+ * if it fails, the breaker reopens for twice as long, up to MAX_OPEN_MS.
+ *
+ * Thread-safe.
+ */
+final class CircuitBreaker {
+  static final int FAILURE_THRESHOLD = 3;
+  static final long INITIAL_OPEN_MS = 15 * 1000;
+  static final long MAX_OPEN_MS = 5 * 60 * 1000;
+
+  private final String m_name;
+  private final long m_initial_open_ms;
+  // All guarded by this.
+  private int m_consecutive_failures = 0;
+  private long m_open_ms;
+  /**
+   * System.currentTimeMillis() before which no requests are allowed, or 0 if
+   * the breaker is closed.
+   */
+  private long m_open_until = 0;
+  /**
+   * Whether the single trial request after an open period is outstanding.
+   */
+  private boolean m_trial_in_flight = false;
+
+  CircuitBreaker(String name) {
+    this(name, INITIAL_OPEN_MS);
+  }
+
+  CircuitBreaker(String name, long initial_open_ms) {
+    m_name = name;
+    m_initial_open_ms = initial_open_ms;
+    m_open_ms = initial_open_ms;
+  }
+
+  /**
+   * @return true if a request may be sent now. If this returns true, the
+   *         caller must later call recordSuccess() or recordFailure(), even
+   *         if the request throws, or a trial request would never end.
+   */
+  synchronized boolean allowRequest(long now_ms) {
+    if (m_open_until == 0) {
+      return true;
+    }
+    if (now_ms < m_open_until || m_trial_in_flight) {
+      return false;
+    }
+    m_trial_in_flight = true;
+    return true;
+  }
+
+  synchronized void recordSuccess() {
+    m_consecutive_failures = 0;
+    m_open_ms = m_initial_open_ms;
+    m_open_until = 0;
+    m_trial_in_flight = false;
+  }
+
+  synchronized void recordFailure(long now_ms) {
+    m_consecutive_failures++;
+    if (m_trial_in_flight) {
+      // The trial request failed, so stay open for longer.
+      m_trial_in_flight = false;
+      m_open_ms = Math.min(m_open_ms * 2, MAX_OPEN_MS);
+      m_open_until = now_ms + m_open_ms;
+    } else if (m_consecutive_failures >= FAILURE_THRESHOLD) {
+      m_open_until = now_ms + m_open_ms;
+    }
+  }
+
+  synchronized boolean isOpen(long now_ms) {
+    return m_open_until != 0 && now_ms < m_open_until;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CircuitBreaker(" + m_name + ", failures="
+           + m_consecutive_failures + ", open_until=" + m_open_until + ")";
+  }
+}
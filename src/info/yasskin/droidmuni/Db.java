@@ -1,7 +1,10 @@
 package info.yasskin.droidmuni;
 
-import java.util.Collections;
-import java.util.List;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import android.content.ContentValues;
@@ -10,6 +13,9 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import android.util.SparseArray;
 
 /**
  * Stores the cached database of NextBus route and stop information.
@@ -19,7 +25,50 @@ import android.database.sqlite.SQLiteOpenHelper;
  */
 final class Db extends SQLiteOpenHelper {
   public Db(Context context) {
-    super(context, "NextMUNIDb", null, 3);
+    super(context, "NextMUNIDb", null, 8);
+  }
+
+  private volatile boolean m_write_ahead_logging = false;
+
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    super.onOpen(db);
+    if (!db.isReadOnly()) {
+      enableWriteAheadLogging(db);
+    }
+  }
+
+  /**
+   * Puts the database in write-ahead-log mode where the platform supports it
+   * (API 11 and later). SQLiteDatabase then keeps a pool of read connections,
+   * so queries outside a transaction read the last commit instead of waiting
+   * for a background refresh's write transaction to finish. Older platforms
+   * keep the rollback journal and the single connection, where refreshes
+   * only hold the lock long enough to apply an already-parsed route.
+   */
+  private void enableWriteAheadLogging(SQLiteDatabase db) {
+    final Method enable;
+    try {
+      enable = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+    } catch (NoSuchMethodException e) {
+      Log.i("DroidMuni", "No write-ahead log on this platform");
+      return;
+    }
+    try {
+      m_write_ahead_logging = (Boolean) enable.invoke(db);
+    } catch (IllegalAccessException e) {
+      Log.w("DroidMuni", "Can't enable the write-ahead log", e);
+    } catch (InvocationTargetException e) {
+      Log.w("DroidMuni", "Can't enable the write-ahead log", e.getCause());
+    }
+  }
+
+  /**
+   * @return true if the database is in write-ahead-log mode, so reads don't
+   *         wait for writes.
+   */
+  public boolean isWriteAheadLogging() {
+    return m_write_ahead_logging;
   }
 
   @Override
@@ -32,7 +81,9 @@ final class Db extends SQLiteOpenHelper {
                  + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
                  + "tag TEXT UNIQUE," + "upstream_index INTEGER,"
                  + "description TEXT,"
-                 + "last_direction_update_ms INTEGER DEFAULT 0)");
+                 + "last_direction_update_ms INTEGER DEFAULT 0,"
+                 // The MD5 of the routeConfig response last stored.
+                 + "config_digest BLOB)");
 
       db.execSQL("CREATE TABLE Directions ("
                  + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -43,13 +94,40 @@ final class Db extends SQLiteOpenHelper {
 
       db.execSQL("CREATE TABLE Stops (" + "_id INTEGER PRIMARY KEY,"
                  + "tag INTEGER," + "title TEXT," + "latitude DOUBLE,"
-                 + "longitude DOUBLE)");
+                 + "longitude DOUBLE,"
+                 // StopGrid.cellOf(latitude, longitude).
+                 + "grid_cell INTEGER)");
+      db.execSQL("CREATE INDEX StopsByGridCell ON Stops (grid_cell)");
 
       db.execSQL("CREATE TABLE DirectionStops ("
                  + "direction INTEGER REFERENCES Directions(_id),"
                  + "stop INTEGER REFERENCES Stops(_id),"
                  + "stop_order INTEGER," + "UNIQUE(direction, stop_order))");
 
+      // Remembers the HTTP cache validators NextBus sent with the response we
+      // last stored for each request URI, so we can send conditional GETs.
+      db.execSQL("CREATE TABLE HttpValidators (" + "uri TEXT PRIMARY KEY,"
+                 + "etag TEXT," + "last_modified TEXT)");
+
+      // The simplified <path>s from each route's routeConfig, as
+      // Polyline.encode() blobs. NextBus doesn't tie paths to directions.
+      db.execSQL("CREATE TABLE RoutePaths ("
+                 + "route_id INTEGER REFERENCES Routes(_id),"
+                 + "path_index INTEGER," + "points BLOB,"
+                 + "UNIQUE(route_id, path_index))");
+
+      // DirectionStops joined with its direction and route, so finding the
+      // routes that serve a stop is one indexed lookup. RouteWriter keeps it
+      // in step with DirectionStops, row for row.
+      db.execSQL("CREATE TABLE StopRoutes ("
+                 + "direction INTEGER REFERENCES Directions(_id),"
+                 + "stop_order INTEGER," + "stop INTEGER REFERENCES Stops(_id),"
+                 + "route_tag TEXT," + "direction_tag TEXT,"
+                 + "UNIQUE(direction, stop_order))");
+      // Covers the lookup by stop, so it never reads the table itself.
+      db.execSQL("CREATE INDEX StopRoutesByStop ON StopRoutes"
+                 + " (stop, route_tag, direction_tag, stop_order)");
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -60,12 +138,14 @@ final class Db extends SQLiteOpenHelper {
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     db.beginTransaction();
     try {
-      db.execSQL("DROP TABLE IF EXISTS RoutesUpdate");
+      db.execSQL("DROP TABLE IF EXISTS RoutesUpdated");
       db.execSQL("DROP TABLE IF EXISTS Routes");
       db.execSQL("DROP TABLE IF EXISTS Directions");
       db.execSQL("DROP TABLE IF EXISTS Stops");
       db.execSQL("DROP TABLE IF EXISTS DirectionStops");
       db.execSQL("DROP TABLE IF EXISTS StopRoutes");
+      db.execSQL("DROP TABLE IF EXISTS HttpValidators");
+      db.execSQL("DROP TABLE IF EXISTS RoutePaths");
 
       onCreate(db);
 
@@ -104,58 +184,17 @@ final class Db extends SQLiteOpenHelper {
     public final long directions_updated_ms;
   }
 
-  public static class Direction {
-    public Direction(long id, String tag, String title, String name,
-        boolean useForUI, List<Db.Stop> stops) {
-      this.id = id;
-      this.tag = tag;
-      this.title = title;
-      this.name = name;
-      this.useForUI = useForUI;
-      this.stops = Collections.unmodifiableList(stops);
-    }
-
-    public final long id;
-    /**
-     * For example, "71__OB6".
-     */
-    public final String tag;
-    /**
-     * For example, "Outbound to 48th Avenue".
-     */
-    public final String title;
-    /**
-     * For example, "Outbound".
-     */
-    public final String name;
-    public final boolean useForUI;
-    public final List<Db.Stop> stops;
-  }
-
-  public static class Stop {
-    public Stop(int id, int tag, String title, double lat, double lon) {
-      this.id = id;
-      this.tag = tag;
-      this.title = title;
-      this.lat = lat;
-      this.lon = lon;
-    }
-
-    public final int id;
-    public final int tag;
-    public final String title;
-    public final double lat;
-    public final double lon;
-  }
-
   public static class Prediction implements Comparable<Prediction> {
-    public Prediction(String route_tag, long predicted_time,
+    public Prediction(String route_tag, String stop_tag, long predicted_time,
         boolean is_departure, String direction_tag, String block) {
-      this.route_tag = route_tag;
+      // Predictions sit in caches and cursors across many polls that repeat
+      // the same few tags.
+      this.route_tag = TagInterner.intern(route_tag);
+      this.stop_tag = TagInterner.intern(stop_tag);
       this.predicted_time = predicted_time;
       this.is_departure = is_departure;
-      this.direction_tag = direction_tag;
-      this.block = block;
+      this.direction_tag = TagInterner.intern(direction_tag);
+      this.block = TagInterner.intern(block);
     }
 
     /**
@@ -171,6 +210,11 @@ final class Db extends SQLiteOpenHelper {
      * this Prediction's time.
      */
     public final String route_tag;
+    /**
+     * The tag of the stop this Prediction is for. Only multi-stop requests
+     * need this, since single-stop requests already know their stop.
+     */
+    public final String stop_tag;
     /**
      * The tag of a Direction instance, to use to describe the endpoint of the
      * route. This can differ from the direction the user looked up when
@@ -197,15 +241,37 @@ final class Db extends SQLiteOpenHelper {
         return cmp;
       return this.direction_tag.compareTo(another.direction_tag);
     }
+
+    @Override
+    public String toString() {
+      return route_tag + "/" + direction_tag + "@" + stop_tag + ": "
+             + predicted_time + (is_departure ? " departs" : " arrives")
+             + " block " + block;
+    }
   }
 
   /**
-   * Leaves new_routes in an undetermined state.
+   * Syncs the Routes table with 'new_routes' using one query and statements
+   * compiled once, only writing the routes that changed. Leaves new_routes in
+   * an undetermined state.
    */
   public void setRoutes(Map<String, Route> new_routes) {
     SQLiteDatabase tables = getWritableDatabase();
     tables.beginTransaction();
     try {
+      final SQLiteStatement delete_route =
+          tables.compileStatement("DELETE FROM Routes WHERE _id == ?");
+      final SQLiteStatement delete_stop_routes =
+          tables.compileStatement("DELETE FROM StopRoutes"
+                                  + " WHERE route_tag == ?");
+      final SQLiteStatement update_route =
+          tables.compileStatement("UPDATE Routes"
+                                  + " SET upstream_index = ?, description = ?"
+                                  + " WHERE _id == ?");
+      final SQLiteStatement insert_route =
+          tables.compileStatement("INSERT INTO Routes"
+                                  + " (tag, upstream_index, description)"
+                                  + " VALUES (?, ?, ?)");
       String[] COLUMNS =
           new String[] { "_id", "tag", "upstream_index", "description" };
       Cursor old_routes =
@@ -219,25 +285,31 @@ final class Db extends SQLiteOpenHelper {
 
           final Route new_route = new_routes.remove(tag);
           if (new_route == null) {
-            tables.delete("Routes", "_id == ?", new String[] { id + "" });
+            delete_route.bindLong(1, id);
+            delete_route.execute();
+            // Nothing would serve its stops any more.
+            RouteWriter.bindString(delete_stop_routes, 1, tag);
+            delete_stop_routes.execute();
           } else if (upstream_index != new_route.upstream_index
                      || !description.equals(new_route.description)) {
-            ContentValues new_values = new ContentValues(2);
-            new_values.put("upstream_index", new_route.upstream_index);
-            new_values.put("description", new_route.description);
-            tables.update("Routes", new_values, "_id == ?",
-                new String[] { id + "" });
+            update_route.bindLong(1, new_route.upstream_index);
+            RouteWriter.bindString(update_route, 2, new_route.description);
+            update_route.bindLong(3, id);
+            update_route.execute();
           }
         }
         for (Route new_route : new_routes.values()) {
-          ContentValues new_values = new ContentValues(3);
-          new_values.put("tag", new_route.tag);
-          new_values.put("upstream_index", new_route.upstream_index);
-          new_values.put("description", new_route.description);
-          tables.insertOrThrow("Routes", "tag", new_values);
+          RouteWriter.bindString(insert_route, 1, new_route.tag);
+          insert_route.bindLong(2, new_route.upstream_index);
+          RouteWriter.bindString(insert_route, 3, new_route.description);
+          insert_route.executeInsert();
         }
       } finally {
         old_routes.close();
+        delete_route.close();
+        delete_stop_routes.close();
+        update_route.close();
+        insert_route.close();
       }
 
       // Update the "last updated" time to now.
@@ -252,6 +324,63 @@ final class Db extends SQLiteOpenHelper {
     }
   }
 
+  /**
+   * Records that the routes list was confirmed to be up to date just now,
+   * without changing it.
+   */
+  public void touchRoutes() {
+    SQLiteDatabase tables = getWritableDatabase();
+    tables.beginTransaction();
+    try {
+      tables.delete("RoutesUpdated", null, null);
+      ContentValues values = new ContentValues(1);
+      values.put("last_update", System.currentTimeMillis());
+      tables.insertOrThrow("RoutesUpdated", null, values);
+      tables.setTransactionSuccessful();
+    } finally {
+      tables.endTransaction();
+    }
+  }
+
+  /**
+   * @return {etag, last_modified} from the last stored response for
+   *         'request_uri', either of which may be null, or null if we don't
+   *         have validators for that URI.
+   */
+  public String[] getValidators(String request_uri) {
+    SQLiteDatabase tables = getReadableDatabase();
+    Cursor validators =
+        tables.query("HttpValidators",
+            new String[] { "etag", "last_modified" }, "uri == ?",
+            new String[] { request_uri }, null, null, null);
+    try {
+      if (!validators.moveToFirst()) {
+        return null;
+      }
+      return new String[] { validators.getString(0), validators.getString(1) };
+    } finally {
+      validators.close();
+    }
+  }
+
+  /**
+   * Remembers the validators of the response to 'request_uri' that was just
+   * stored, or forgets them if both are null.
+   */
+  public void setValidators(String request_uri, String etag,
+      String last_modified) {
+    SQLiteDatabase tables = getWritableDatabase();
+    if (etag == null && last_modified == null) {
+      tables.delete("HttpValidators", "uri == ?", new String[] { request_uri });
+      return;
+    }
+    ContentValues values = new ContentValues(3);
+    values.put("uri", request_uri);
+    values.put("etag", etag);
+    values.put("last_modified", last_modified);
+    tables.replaceOrThrow("HttpValidators", null, values);
+  }
+
   public Route getRoute(String route_tag) {
     SQLiteDatabase tables = getReadableDatabase();
     final String[] COLUMNS =
@@ -301,131 +430,430 @@ final class Db extends SQLiteOpenHelper {
   }
 
   /**
-   * Updates the route whose _id is route_id to have the directions in
-   * 'directions'. After this call, directions has an undefined set of elements.
+   * Starts replacing the stops and directions of the route whose _id is
+   * 'route_id' with the ones streamed into the returned writer, usually from a
+   * RouteBatch. Must be called inside a transaction on 'tables', and the
+   * writer must be closed before that transaction ends.
+   * 
+   * @param stop_ids
+   *          The ids of the stops that will be written. Stops are shared with
+   *          other routes, so the writer loads them by id to compare against.
    */
-  public void setDirections(long route_id, Map<String, Direction> new_directions) {
-    SQLiteDatabase tables = getWritableDatabase();
-    tables.beginTransaction();
-    try {
-      String[] COLUMNS =
-          new String[] { "_id", "tag", "title", "name", "use_for_ui" };
-      Cursor old_directions =
-          tables.query("Directions", COLUMNS, "route_id == ?",
-              new String[] { route_id + "" }, null, null, null);
-      try {
-        final ContentValues new_values = new ContentValues(5);
-        for (old_directions.moveToFirst(); !old_directions.isAfterLast(); old_directions.moveToNext()) {
-          final long id = old_directions.getLong(0);
-          final String tag = old_directions.getString(1);
-          final String title = old_directions.getString(2);
-          final String name = old_directions.getString(3);
-          final boolean use_for_ui = old_directions.getInt(4) != 0;
-
-          final Direction new_direction = new_directions.remove(tag);
-          if (new_direction == null) {
-            tables.delete("Directions", "_id == ?", new String[] { id + "" });
-            continue;
-          } else if (!title.equals(new_direction.title)
-                     || !name.equals(new_direction.name)
-                     || use_for_ui != new_direction.useForUI) {
-            new_values.clear();
-            new_values.put("title", new_direction.title);
-            new_values.put("name", new_direction.name);
-            new_values.put("use_for_ui", new_direction.useForUI);
-            tables.update("Directions", new_values, "_id == ?",
-                new String[] { id + "" });
+  public RouteWriter openRouteWriter(SQLiteDatabase tables, long route_id,
+      int[] stop_ids) {
+    return new RouteWriter(tables, route_id, stop_ids);
+  }
+
+  /**
+   * Syncs a route's stops, directions and paths with the ones streamed into
+   * it. The writer loads what's already stored for the route up front, in one
+   * query per table, and then compares each parsed row against that in memory,
+   * so it only executes statements for rows that changed. Refreshing a route
+   * that hasn't changed executes no writes at all.
+   *
+   * Every DirectionStops row is mirrored into StopRoutes with the same
+   * (direction, stop_order) key, so the two are written together.
+   *
+   * Stops are shared between routes, so they're upserted and never deleted.
+   * They're loaded by id rather than by route, so a stop that another route
+   * already stored isn't rewritten unless this route's copy differs. Since
+   * the writer loads and writes inside one transaction, two routes sharing a
+   * stop can't interleave. Directions are matched by tag, paths by index,
+   * and finish() deletes the ones the route no longer has. The in-memory copy
+   * is updated along with the tables, so it stays right if the parse is
+   * retried.
+   */
+  public static final class RouteWriter implements RouteConfigParser.Sink {
+    /** A row of Stops as stored. */
+    private static final class StoredStop {
+      int tag;
+      String title;
+      double latitude;
+      double longitude;
+    }
+
+    /** A row of Directions, and its DirectionStops, as stored. */
+    private static final class StoredDirection {
+      long id;
+      String tag;
+      String title;
+      String name;
+      boolean use_for_ui;
+      int[] stops = new int[0];
+      /** Whether the direction was written since the last beginRoute(). */
+      boolean seen;
+    }
+
+    private final long m_route_id;
+    private final SQLiteStatement m_upsert_stop;
+    private final SQLiteStatement m_update_direction;
+    private final SQLiteStatement m_insert_direction;
+    private final SQLiteStatement m_delete_direction;
+    private final SQLiteStatement m_replace_direction_stop;
+    private final SQLiteStatement m_truncate_direction_stops;
+    private final SQLiteStatement m_replace_stop_route;
+    private final SQLiteStatement m_truncate_stop_routes;
+    private final SQLiteStatement m_replace_path;
+    private final SQLiteStatement m_truncate_paths;
+
+    private final SparseArray<StoredStop> m_stops =
+        new SparseArray<StoredStop>();
+    private final HashMap<String, StoredDirection> m_directions =
+        new HashMap<String, StoredDirection>();
+    private final SparseArray<byte[]> m_paths = new SparseArray<byte[]>();
+
+    /** The tag of the route being written. */
+    private String m_route_tag = null;
+    /** The direction being written, or null between directions. */
+    private StoredDirection m_direction = null;
+    /** The stops of m_direction seen so far. */
+    private int[] m_direction_stops = new int[64];
+    private int m_direction_stop_count = 0;
+    /** The number of paths written since the last beginRoute(). */
+    private int m_path_count = 0;
+    /** The number of statements executed to change the tables. */
+    private int m_write_count = 0;
+
+    private RouteWriter(SQLiteDatabase tables, long route_id, int[] stop_ids) {
+      m_route_id = route_id;
+      m_upsert_stop =
+          tables.compileStatement("INSERT OR REPLACE INTO Stops"
+                                  + " (_id, tag, title, latitude, longitude,"
+                                  + " grid_cell) VALUES (?, ?, ?, ?, ?, ?)");
+      m_update_direction =
+          tables.compileStatement("UPDATE Directions"
+                                  + " SET title = ?, name = ?, use_for_ui = ?"
+                                  + " WHERE _id == ?");
+      m_insert_direction =
+          tables.compileStatement("INSERT INTO Directions"
+                                  + " (route_id, tag, title, name, use_for_ui)"
+                                  + " VALUES (?, ?, ?, ?, ?)");
+      m_delete_direction =
+          tables.compileStatement("DELETE FROM Directions WHERE _id == ?");
+      m_replace_direction_stop =
+          tables.compileStatement("INSERT OR REPLACE INTO DirectionStops"
+                                  + " (direction, stop, stop_order)"
+                                  + " VALUES (?, ?, ?)");
+      m_truncate_direction_stops =
+          tables.compileStatement("DELETE FROM DirectionStops"
+                                  + " WHERE direction == ? AND stop_order >= ?");
+      m_replace_stop_route =
+          tables.compileStatement("INSERT OR REPLACE INTO StopRoutes"
+                                  + " (direction, stop_order, stop, route_tag,"
+                                  + " direction_tag) VALUES (?, ?, ?, ?, ?)");
+      m_truncate_stop_routes =
+          tables.compileStatement("DELETE FROM StopRoutes"
+                                  + " WHERE direction == ? AND stop_order >= ?");
+      m_replace_path =
+          tables.compileStatement("INSERT OR REPLACE INTO RoutePaths"
+                                  + " (route_id, path_index, points)"
+                                  + " VALUES (?, ?, ?)");
+      m_truncate_paths =
+          tables.compileStatement("DELETE FROM RoutePaths"
+                                  + " WHERE route_id == ? AND path_index >= ?");
+      loadStops(tables, stop_ids);
+      load(tables);
+    }
+
+    /**
+     * Loads the stored copies of 'stop_ids', in as few queries as SQLite's
+     * limit on bound parameters allows.
+     */
+    private void loadStops(SQLiteDatabase tables, int[] stop_ids) {
+      // SQLite allows 999 parameters by default.
+      final int CHUNK = 500;
+      for (int start = 0; start < stop_ids.length; start += CHUNK) {
+        final int end = Math.min(stop_ids.length, start + CHUNK);
+        final StringBuilder sql =
+            new StringBuilder("SELECT _id, tag, title, latitude, longitude"
+                              + " FROM Stops WHERE _id IN (");
+        final String[] args = new String[end - start];
+        for (int i = start; i < end; i++) {
+          sql.append(i == start ? "?" : ",?");
+          args[i - start] = Integer.toString(stop_ids[i]);
+        }
+        sql.append(')');
+        final Cursor stops = tables.rawQuery(sql.toString(), args);
+        try {
+          for (stops.moveToFirst(); !stops.isAfterLast(); stops.moveToNext()) {
+            final StoredStop stop = new StoredStop();
+            stop.tag = stops.getInt(1);
+            stop.title = stops.getString(2);
+            stop.latitude = stops.getDouble(3);
+            stop.longitude = stops.getDouble(4);
+            m_stops.put(stops.getInt(0), stop);
           }
+        } finally {
+          stops.close();
+        }
+      }
+    }
+
+    private void load(SQLiteDatabase tables) {
+      final String[] route_id = new String[] { m_route_id + "" };
 
-          updateDirectionStops(tables, id, new_direction);
+      final Cursor directions =
+          tables.rawQuery("SELECT _id, tag, title, name, use_for_ui, stop"
+                          + " FROM Directions LEFT JOIN DirectionStops"
+                          + " ON (direction == _id) WHERE route_id == ?"
+                          + " ORDER BY _id, stop_order", route_id);
+      try {
+        StoredDirection direction = null;
+        int stop_count = 0;
+        for (directions.moveToFirst(); !directions.isAfterLast(); directions.moveToNext()) {
+          final long id = directions.getLong(0);
+          if (direction == null || direction.id != id) {
+            storeStops(direction, m_direction_stops, stop_count);
+            direction = new StoredDirection();
+            direction.id = id;
+            direction.tag = directions.getString(1);
+            direction.title = directions.getString(2);
+            direction.name = directions.getString(3);
+            direction.use_for_ui = directions.getInt(4) != 0;
+            m_directions.put(directions.getString(1), direction);
+            stop_count = 0;
+          }
+          if (!directions.isNull(5)) {
+            m_direction_stops = append(m_direction_stops, stop_count++,
+                directions.getInt(5));
+          }
         }
-        for (Direction new_direction : new_directions.values()) {
-          new_values.clear();
-          new_values.put("route_id", route_id);
-          new_values.put("tag", new_direction.tag);
-          new_values.put("title", new_direction.title);
-          new_values.put("name", new_direction.name);
-          new_values.put("use_for_ui", new_direction.useForUI);
-          long id = tables.insertOrThrow("Directions", null, new_values);
-          updateDirectionStops(tables, id, new_direction);
+        storeStops(direction, m_direction_stops, stop_count);
+      } finally {
+        directions.close();
+      }
+
+      final Cursor paths =
+          tables.rawQuery("SELECT path_index, points FROM RoutePaths"
+                          + " WHERE route_id == ?", route_id);
+      try {
+        for (paths.moveToFirst(); !paths.isAfterLast(); paths.moveToNext()) {
+          m_paths.put(paths.getInt(0), paths.getBlob(1));
         }
       } finally {
-        old_directions.close();
+        paths.close();
       }
+    }
 
-      tables.setTransactionSuccessful();
-    } finally {
-      tables.endTransaction();
+    public void beginRoute(String tag) {
+      m_route_tag = tag;
+      for (StoredDirection direction : m_directions.values()) {
+        direction.seen = false;
+      }
+      m_direction = null;
+      m_path_count = 0;
     }
-  }
 
-  private void updateDirectionStops(SQLiteDatabase tables, long direction_id,
-      Direction new_direction) {
-    tables.delete("DirectionStops", "direction == ?",
-        new String[] { direction_id + "" });
+    public void stop(int id, int tag, String title, double lat, double lon) {
+      StoredStop stored = m_stops.get(id);
+      if (stored != null && stored.tag == tag && equal(stored.title, title)
+          && stored.latitude == lat && stored.longitude == lon) {
+        return;
+      }
+      m_upsert_stop.bindLong(1, id);
+      m_upsert_stop.bindLong(2, tag);
+      bindString(m_upsert_stop, 3, title);
+      m_upsert_stop.bindDouble(4, lat);
+      m_upsert_stop.bindDouble(5, lon);
+      m_upsert_stop.bindLong(6, StopGrid.cellOf(lat, lon));
+      m_upsert_stop.execute();
+      m_write_count++;
+      if (stored == null) {
+        stored = new StoredStop();
+        m_stops.put(id, stored);
+      }
+      stored.tag = tag;
+      stored.title = title;
+      stored.latitude = lat;
+      stored.longitude = lon;
+    }
 
-    // Going to be inserting a bunch into DirectionStops...
-    DatabaseUtils.InsertHelper stop_inserter =
-        new DatabaseUtils.InsertHelper(tables, "DirectionStops");
-    try {
-      int direction_index = stop_inserter.getColumnIndex("direction");
-      int stop_index = stop_inserter.getColumnIndex("stop");
-      int stop_order_index = stop_inserter.getColumnIndex("stop_order");
-      for (int i = 0; i < new_direction.stops.size(); ++i) {
-        stop_inserter.prepareForInsert();
-        stop_inserter.bind(direction_index, direction_id);
-        stop_inserter.bind(stop_index, new_direction.stops.get(i).id);
-        stop_inserter.bind(stop_order_index, i);
-        stop_inserter.execute();
+    public void beginDirection(String tag, String title, String name,
+        boolean use_for_ui) {
+      StoredDirection stored = m_directions.get(tag);
+      if (stored == null) {
+        m_insert_direction.bindLong(1, m_route_id);
+        bindString(m_insert_direction, 2, tag);
+        bindString(m_insert_direction, 3, title);
+        bindString(m_insert_direction, 4, name);
+        m_insert_direction.bindLong(5, use_for_ui ? 1 : 0);
+        stored = new StoredDirection();
+        stored.id = m_insert_direction.executeInsert();
+        stored.tag = tag;
+        m_write_count++;
+        m_directions.put(tag, stored);
+      } else if (!equal(stored.title, title) || !equal(stored.name, name)
+                 || stored.use_for_ui != use_for_ui) {
+        bindString(m_update_direction, 1, title);
+        bindString(m_update_direction, 2, name);
+        m_update_direction.bindLong(3, use_for_ui ? 1 : 0);
+        m_update_direction.bindLong(4, stored.id);
+        m_update_direction.execute();
+        m_write_count++;
       }
-    } finally {
-      stop_inserter.close();
+      stored.title = title;
+      stored.name = name;
+      stored.use_for_ui = use_for_ui;
+      stored.seen = true;
+      m_direction = stored;
+      m_direction_stop_count = 0;
     }
-  }
 
-  /**
-   * Adds 'stop' to the set of stops if it's not already present.
-   */
-  public synchronized void addStop(Stop stop, long route_id) {
-    final SQLiteDatabase tables = getWritableDatabase();
-    tables.beginTransaction();
-    try {
-      final ContentValues values = new ContentValues(4);
-      final Cursor existing_stop =
-          tables.query("Stops", new String[] { "tag", "title", "latitude",
-                                              "longitude" }, "_id == ?",
-              new String[] { stop.id + "" }, null, null, null);
-      try {
-        if (existing_stop.getCount() == 0) {
-          values.clear();
-          values.put("_id", stop.id);
-          values.put("tag", stop.tag);
-          values.put("title", stop.title);
-          values.put("latitude", stop.lat);
-          values.put("longitude", stop.lon);
-          tables.insertOrThrow("Stops", null, values);
-        } else {
-          existing_stop.moveToFirst();
-          if (existing_stop.getInt(0) != stop.tag
-              || !existing_stop.getString(1).equals(stop.title)
-              || existing_stop.getDouble(2) != stop.lat
-              || existing_stop.getDouble(3) != stop.lon) {
-            values.clear();
-            values.put("tag", stop.tag);
-            values.put("title", stop.title);
-            values.put("latitude", stop.lat);
-            values.put("longitude", stop.lon);
-            tables.update("Stops", values, "_id == ?", new String[] { stop.id
-                                                                      + "" });
-          }
+    public void directionStop(int stop_id, int order) {
+      m_direction_stops =
+          append(m_direction_stops, m_direction_stop_count++, stop_id);
+    }
+
+    /**
+     * Rewrites only the stop_orders whose stop changed, and cuts off any
+     * stops past the new end.
+     */
+    public void endDirection() {
+      final StoredDirection direction = m_direction;
+      m_direction = null;
+      final int[] old_stops = direction.stops;
+      final int count = m_direction_stop_count;
+      for (int order = 0; order < count; order++) {
+        if (order < old_stops.length
+            && old_stops[order] == m_direction_stops[order]) {
+          continue;
         }
-      } finally {
-        existing_stop.close();
+        m_replace_direction_stop.bindLong(1, direction.id);
+        m_replace_direction_stop.bindLong(2, m_direction_stops[order]);
+        m_replace_direction_stop.bindLong(3, order);
+        m_replace_direction_stop.execute();
+        m_replace_stop_route.bindLong(1, direction.id);
+        m_replace_stop_route.bindLong(2, order);
+        m_replace_stop_route.bindLong(3, m_direction_stops[order]);
+        bindString(m_replace_stop_route, 4, m_route_tag);
+        bindString(m_replace_stop_route, 5, direction.tag);
+        m_replace_stop_route.execute();
+        m_write_count += 2;
+      }
+      if (old_stops.length > count) {
+        truncateDirectionStops(direction.id, count);
       }
+      storeStops(direction, m_direction_stops, count);
+    }
 
-      tables.setTransactionSuccessful();
-    } finally {
-      tables.endTransaction();
+    public void path(int index, Polyline path) {
+      m_path_count = Math.max(m_path_count, index + 1);
+      final byte[] points = path.encode();
+      if (Arrays.equals(m_paths.get(index), points)) {
+        return;
+      }
+      m_replace_path.bindLong(1, m_route_id);
+      m_replace_path.bindLong(2, index);
+      m_replace_path.bindBlob(3, points);
+      m_replace_path.execute();
+      m_write_count++;
+      m_paths.put(index, points);
+    }
+
+    /**
+     * Deletes the route's directions and paths that weren't written since the
+     * last beginRoute(). Call once the parse has succeeded.
+     */
+    public void finish() {
+      final Iterator<StoredDirection> directions =
+          m_directions.values().iterator();
+      while (directions.hasNext()) {
+        final StoredDirection direction = directions.next();
+        if (direction.seen) {
+          continue;
+        }
+        truncateDirectionStops(direction.id, 0);
+        m_delete_direction.bindLong(1, direction.id);
+        m_delete_direction.execute();
+        m_write_count++;
+        directions.remove();
+      }
+
+      boolean stale_paths = false;
+      for (int i = m_paths.size() - 1; i >= 0; i--) {
+        if (m_paths.keyAt(i) >= m_path_count) {
+          m_paths.removeAt(i);
+          stale_paths = true;
+        }
+      }
+      if (stale_paths) {
+        m_truncate_paths.bindLong(1, m_route_id);
+        m_truncate_paths.bindLong(2, m_path_count);
+        m_truncate_paths.execute();
+        m_write_count++;
+      }
+    }
+
+    /**
+     * Deletes the DirectionStops and StopRoutes rows of 'direction_id' from
+     * 'stop_order' on.
+     */
+    private void truncateDirectionStops(long direction_id, int stop_order) {
+      m_truncate_direction_stops.bindLong(1, direction_id);
+      m_truncate_direction_stops.bindLong(2, stop_order);
+      m_truncate_direction_stops.execute();
+      m_truncate_stop_routes.bindLong(1, direction_id);
+      m_truncate_stop_routes.bindLong(2, stop_order);
+      m_truncate_stop_routes.execute();
+      m_write_count += 2;
+    }
+
+    /**
+     * @return How many statements this writer has executed to change the
+     *         tables, not counting the queries that loaded them.
+     */
+    public int getWriteCount() {
+      return m_write_count;
+    }
+
+    public void close() {
+      m_upsert_stop.close();
+      m_update_direction.close();
+      m_insert_direction.close();
+      m_delete_direction.close();
+      m_replace_direction_stop.close();
+      m_truncate_direction_stops.close();
+      m_replace_stop_route.close();
+      m_truncate_stop_routes.close();
+      m_replace_path.close();
+      m_truncate_paths.close();
+    }
+
+    private static void storeStops(StoredDirection direction, int[] stops,
+        int count) {
+      if (direction == null) {
+        return;
+      }
+      direction.stops = new int[count];
+      System.arraycopy(stops, 0, direction.stops, 0, count);
+    }
+
+    /**
+     * Sets array[index] to 'value', growing 'array' if necessary.
+     *
+     * @return 'array' or its grown copy.
+     */
+    private static int[] append(int[] array, int index, int value) {
+      if (index == array.length) {
+        final int[] bigger = new int[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        array = bigger;
+      }
+      array[index] = value;
+      return array;
+    }
+
+    private static boolean equal(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+
+    private static void bindString(SQLiteStatement statement, int index,
+        String value) {
+      if (value == null) {
+        statement.bindNull(index);
+      } else {
+        statement.bindString(index, value);
+      }
     }
   }
 }
@@ -56,7 +56,6 @@ public class DroidMuni extends Activity {
   private PreferenceManager m_preferences_manager;
 
   static final int REDRAW_INTERVAL_MS = 30000;
-  static final int REPREDICT_INTERVAL_MS = 2 * 60000;
   static final int NUM_CLOSEST_STOPS = 6;
 
   /**
@@ -129,6 +128,13 @@ public class DroidMuni extends Activity {
         new SimpleCursorAdapter(this, R.layout.prediction_list_item, null,
             new String[] { "predicted_time" }, new int[] { android.R.id.text1 });
     m_predictions_adapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+      // Column indices for m_indexed_cursor, looked up once per cursor rather
+      // than once per row.
+      private Cursor m_indexed_cursor = null;
+      private int m_route_tag_index;
+      private int m_direction_tag_index;
+      private int m_direction_title_index;
+
       public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
         if (!(view instanceof OnePredictionView)) {
           return false;
@@ -145,9 +151,16 @@ public class DroidMuni extends Activity {
         prediction_view.setExpectedArrival(cursor.getLong(columnIndex));
         prediction_view.setQueryRouteTag(getSelectedRoute());
         prediction_view.setQueryDirectionTag(getSelectedDirection());
-        prediction_view.setPredictionRouteTag(cursor.getString(cursor.getColumnIndexOrThrow("route_tag")));
-        prediction_view.setPredictionDirectionTag(cursor.getString(cursor.getColumnIndexOrThrow("direction_tag")));
-        prediction_view.setPredictionDirectionTitle(cursor.getString(cursor.getColumnIndexOrThrow("direction_title")));
+        if (cursor != m_indexed_cursor) {
+          m_route_tag_index = cursor.getColumnIndexOrThrow("route_tag");
+          m_direction_tag_index = cursor.getColumnIndexOrThrow("direction_tag");
+          m_direction_title_index =
+              cursor.getColumnIndexOrThrow("direction_title");
+          m_indexed_cursor = cursor;
+        }
+        prediction_view.setPredictionRouteTag(cursor.getString(m_route_tag_index));
+        prediction_view.setPredictionDirectionTag(cursor.getString(m_direction_tag_index));
+        prediction_view.setPredictionDirectionTitle(cursor.getString(m_direction_title_index));
 
         prediction_view.update();
         return true;
@@ -245,16 +258,14 @@ public class DroidMuni extends Activity {
   @Override
   protected void onResume() {
     super.onResume();
-    if (this.m_predictions_shown) {
-      m_handler.postDelayed(mRequeryPredictions, 0);
-    }
+    m_repoll_scheduler.resume();
   }
 
   @Override
   public void onPause() {
     super.onPause();
 
-    m_handler.removeCallbacks(mRequeryPredictions);
+    m_repoll_scheduler.pause();
 
     m_preferences_manager.apply();
   }
@@ -531,16 +542,14 @@ public class DroidMuni extends Activity {
             return;
           }
           String selected_stop = parent_item.getString(3);
-          m_predictions_shown = false;
-          m_handler.removeCallbacks(mRequeryPredictions);
+          m_repoll_scheduler.stop();
           m_prediction_query_manager.startQuery(getContentResolver(),
               Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI,
                   selected_stop));
         }
 
         public void onNothingSelected(AdapterView<?> parent) {
-          m_predictions_shown = false;
-          m_handler.removeCallbacks(mRequeryPredictions);
+          m_repoll_scheduler.stop();
           m_predictions_adapter.changeCursor(null);
         }
       };
@@ -550,24 +559,29 @@ public class DroidMuni extends Activity {
           m_prediction_request_failed) {
         @Override
         protected void onSuccessfulQuery(Cursor predictions) {
+          // Schedule before swapping in m_no_predictions, which closes
+          // 'predictions'.
+          m_repoll_scheduler.onPredictions(predictions);
           if (predictions.getCount() == 0) {
             m_predictions_adapter.changeCursor(m_no_predictions);
-          } else {
-            m_predictions_shown = true;
-            m_handler.postDelayed(mRequeryPredictions, REPREDICT_INTERVAL_MS);
           }
         }
       };
 
-  private boolean m_predictions_shown = false;
   private final Runnable mRequeryPredictions = new Runnable() {
     public void run() {
       m_prediction_query_manager.requery();
-
-      m_handler.postDelayed(this, REPREDICT_INTERVAL_MS);
     }
   };
 
+  /**
+   * Re-polls the shown predictions more often when a bus is about to arrive.
+   * Must be initialized after mRequeryPredictions.
+   */
+  private final PredictionRepollScheduler m_repoll_scheduler =
+      new PredictionRepollScheduler(m_handler, mRequeryPredictions,
+          new ProximityRepollPolicy());
+
 
   private class DroidMuniPagerAdapter extends PagerAdapter implements 
   TitleProvider {
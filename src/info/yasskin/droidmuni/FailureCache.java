@@ -0,0 +1,58 @@
+package info.yasskin.droidmuni;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers request URIs that recently failed, so that repeated requeries from
+ * the UI fail fast instead of piling more doomed requests onto a struggling
+ * server.
+ *
+ * Thread-safe.
+ */
+final class FailureCache {
+  static final long DEFAULT_TTL_MS = 10 * 1000;
+  private static final int MAX_ENTRIES = 64;
+
+  private final long m_ttl_ms;
+  // Guarded by this. Maps a request URI to the System.currentTimeMillis() it
+  // failed at. Iterates from oldest to newest insertion.
+  private final LinkedHashMap<String, Long> m_failures =
+      new LinkedHashMap<String, Long>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  FailureCache(long ttl_ms) {
+    m_ttl_ms = ttl_ms;
+  }
+
+  /**
+   * @return true if 'request_uri' failed less than the TTL before 'now_ms'.
+   */
+  synchronized boolean recentlyFailed(String request_uri, long now_ms) {
+    final Long failed_at = m_failures.get(request_uri);
+    if (failed_at == null) {
+      return false;
+    }
+    if (failed_at + m_ttl_ms <= now_ms) {
+      m_failures.remove(request_uri);
+      return false;
+    }
+    return true;
+  }
+
+  synchronized void recordFailure(String request_uri, long now_ms) {
+    // Remove first so the entry moves to the newest end.
+    m_failures.remove(request_uri);
+    m_failures.put(request_uri, now_ms);
+  }
+
+  synchronized void recordSuccess(String request_uri) {
+    m_failures.remove(request_uri);
+  }
+}
@@ -0,0 +1,285 @@
+package info.yasskin.droidmuni;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+/**
+ * An on-disk log of raw NextBus responses, indexed by request URI and the time
+ * they were fetched. In recording mode NextMuniProvider appends every response
+ * it fetches. In replay mode it serves responses from the archive instead of
+ * the network, so field sessions can be reproduced exactly, parsers and the
+ * database can be benchmarked on real traffic, and the app can run with no
+ * network at all.
+ *
+ * Each record is the request URI, the fetch time, and the deflated response
+ * body. Replay hands out each URI's recordings in the order they were recorded
+ * and then keeps repeating the last one. Replayed epochTime attributes are
+ * shifted by the time between the start of the recording and the start of the
+ * replay, so predictions still lie in the future.
+ *
+ * Thread-safe.
+ */
+public final class FeedArchive {
+  public enum Mode {
+    RECORD, REPLAY,
+  }
+
+  private static final int MAGIC = 0x444d4641; // "DMFA"
+  private static final Pattern EPOCH_TIME =
+      Pattern.compile("epochTime=\"(\\d+)\"");
+
+  private static final class Record {
+    Record(long time_ms, long offset, int raw_length, int compressed_length) {
+      this.time_ms = time_ms;
+      this.offset = offset;
+      this.raw_length = raw_length;
+      this.compressed_length = compressed_length;
+    }
+
+    final long time_ms;
+    /** Where the compressed body starts in the file. */
+    final long offset;
+    final int raw_length;
+    final int compressed_length;
+  }
+
+  private final Mode m_mode;
+  // All guarded by this.
+  private final RandomAccessFile m_file;
+  private final HashMap<String, List<Record>> m_index =
+      new HashMap<String, List<Record>>();
+  /** How many of each URI's records replay has handed out. */
+  private final HashMap<String, Integer> m_replay_positions =
+      new HashMap<String, Integer>();
+  private long m_earliest_record_ms = Long.MAX_VALUE;
+  /**
+   * Added to every replayed epochTime. Set when the archive is opened for
+   * replay.
+   */
+  private long m_time_shift_ms = 0;
+
+  /**
+   * Opens 'file', creating it if necessary, to append new responses to.
+   */
+  public static FeedArchive openForRecording(File file) throws IOException {
+    return new FeedArchive(file, Mode.RECORD);
+  }
+
+  /**
+   * Opens an existing archive to serve responses from.
+   */
+  public static FeedArchive openForReplay(File file) throws IOException {
+    if (!file.exists()) {
+      throw new IOException("No archive at " + file);
+    }
+    FeedArchive archive = new FeedArchive(file, Mode.REPLAY);
+    synchronized (archive) {
+      if (archive.m_earliest_record_ms != Long.MAX_VALUE) {
+        archive.m_time_shift_ms =
+            System.currentTimeMillis() - archive.m_earliest_record_ms;
+      }
+    }
+    return archive;
+  }
+
+  private FeedArchive(File file, Mode mode) throws IOException {
+    m_mode = mode;
+    m_file = new RandomAccessFile(file, mode == Mode.RECORD ? "rw" : "r");
+    if (m_file.length() == 0) {
+      if (mode == Mode.REPLAY) {
+        m_file.close();
+        throw new IOException(file + " is an empty archive");
+      }
+      m_file.writeInt(MAGIC);
+    } else {
+      if (m_file.readInt() != MAGIC) {
+        m_file.close();
+        throw new IOException(file + " is not a feed archive");
+      }
+      loadIndex();
+    }
+  }
+
+  public Mode getMode() {
+    return m_mode;
+  }
+
+  /**
+   * Reads the headers of every record after the magic number.
+   */
+  private synchronized void loadIndex() throws IOException {
+    final long length = m_file.length();
+    while (m_file.getFilePointer() < length) {
+      final long record_start = m_file.getFilePointer();
+      try {
+        final String uri = m_file.readUTF();
+        final long time_ms = m_file.readLong();
+        final int raw_length = m_file.readInt();
+        final int compressed_length = m_file.readInt();
+        final long offset = m_file.getFilePointer();
+        if (offset + compressed_length > length) {
+          throw new EOFException();
+        }
+        m_file.seek(offset + compressed_length);
+        addToIndex(uri, new Record(time_ms, offset, raw_length,
+            compressed_length));
+      } catch (EOFException e) {
+        // The app died partway through appending a record. Drop it so new
+        // records start from a clean boundary.
+        Log.w("DroidMuni", "Truncated feed archive record at " + record_start);
+        if (m_mode == Mode.RECORD) {
+          m_file.setLength(record_start);
+        }
+        break;
+      }
+    }
+  }
+
+  private void addToIndex(String uri, Record record) {
+    List<Record> records = m_index.get(uri);
+    if (records == null) {
+      records = new ArrayList<Record>();
+      m_index.put(uri, records);
+    }
+    records.add(record);
+    m_earliest_record_ms = Math.min(m_earliest_record_ms, record.time_ms);
+  }
+
+  /**
+   * Appends the response 'body' to 'request_uri', fetched at 'time_ms'.
+   */
+  public synchronized void record(String request_uri, long time_ms,
+      byte[] body) throws IOException {
+    if (m_mode != Mode.RECORD) {
+      throw new IllegalStateException("Archive is open for replay");
+    }
+    final byte[] compressed = deflate(body);
+    m_file.seek(m_file.length());
+    m_file.writeUTF(request_uri);
+    m_file.writeLong(time_ms);
+    m_file.writeInt(body.length);
+    m_file.writeInt(compressed.length);
+    final long offset = m_file.getFilePointer();
+    m_file.write(compressed);
+    addToIndex(request_uri, new Record(time_ms, offset, body.length,
+        compressed.length));
+  }
+
+  /**
+   * @return The next recorded response to 'request_uri', with its epochTimes
+   *         shifted to the present, or null if it was never recorded.
+   */
+  public synchronized byte[] replay(String request_uri) throws IOException {
+    final List<Record> records = m_index.get(request_uri);
+    if (records == null) {
+      return null;
+    }
+    Integer position = m_replay_positions.get(request_uri);
+    if (position == null) {
+      position = 0;
+    }
+    final Record record = records.get(Math.min(position, records.size() - 1));
+    m_replay_positions.put(request_uri, position + 1);
+
+    final byte[] compressed = new byte[record.compressed_length];
+    m_file.seek(record.offset);
+    m_file.readFully(compressed);
+    return shiftEpochTimes(inflate(compressed, record.raw_length));
+  }
+
+  public synchronized void close() throws IOException {
+    m_file.close();
+  }
+
+  private byte[] shiftEpochTimes(byte[] body) throws IOException {
+    if (m_time_shift_ms == 0) {
+      return body;
+    }
+    final String text = new String(body, "UTF-8");
+    final Matcher matcher = EPOCH_TIME.matcher(text);
+    if (!matcher.find()) {
+      return body;
+    }
+    final StringBuffer shifted = new StringBuffer(text.length());
+    do {
+      final long epoch_time = Long.parseLong(matcher.group(1));
+      matcher.appendReplacement(shifted, "epochTime=\""
+                                         + (epoch_time + m_time_shift_ms)
+                                         + "\"");
+    } while (matcher.find());
+    matcher.appendTail(shifted);
+    return shifted.toString().getBytes("UTF-8");
+  }
+
+  private static byte[] deflate(byte[] body) {
+    final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      deflater.setInput(body);
+      deflater.finish();
+      final ByteArrayOutputStream result =
+          new ByteArrayOutputStream(body.length / 4 + 16);
+      final byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        final int count = deflater.deflate(buffer);
+        result.write(buffer, 0, count);
+      }
+      return result.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] compressed, int raw_length)
+      throws IOException {
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      final byte[] result = new byte[raw_length];
+      int filled = 0;
+      while (filled < raw_length && !inflater.finished()) {
+        final int count = inflater.inflate(result, filled, raw_length - filled);
+        if (count == 0 && inflater.needsInput()) {
+          break;
+        }
+        filled += count;
+      }
+      if (filled != raw_length) {
+        throw new IOException("Corrupt feed archive record");
+      }
+      return result;
+    } catch (DataFormatException e) {
+      IOException wrapped = new IOException("Corrupt feed archive record");
+      wrapped.initCause(e);
+      throw wrapped;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Reads all of 'input' into memory.
+   */
+  static byte[] readFully(InputStream input) throws IOException {
+    final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int count;
+    while ((count = input.read(buffer)) != -1) {
+      result.write(buffer, 0, count);
+    }
+    return result.toByteArray();
+  }
+}
@@ -0,0 +1,130 @@
+package info.yasskin.droidmuni;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+/**
+ * Runs background work in a few bounded lanes, so that a burst of prefetches
+ * or cache refreshes can't starve the work a user is waiting on. Each lane has
+ * its own fixed number of threads, running at the lane's thread priority, and
+ * an unbounded queue whose depth is tracked.
+ *
+ * A lane's threads are started as tasks arrive and then live as long as the
+ * process: API 4 has no ThreadPoolExecutor.allowCoreThreadTimeOut(), and the
+ * keep-alive time only applies to threads beyond the core size, which a fixed
+ * size lane never has.
+ */
+public final class LanedExecutor {
+  public enum Lane {
+    /**
+     * Work whose result the user is waiting for.
+     */
+    USER_BLOCKING("user", 2, Process.THREAD_PRIORITY_DEFAULT),
+    /**
+     * Work that fetches data before the user asks for it.
+     */
+    PREFETCH("prefetch", 1, Process.THREAD_PRIORITY_BACKGROUND),
+    /**
+     * Refreshes of data we already have, which can wait arbitrarily long.
+     * Most of a route refresh is spent waiting on NextBus, so a few threads
+     * let stale routes refresh side by side. Refreshes of the same route
+     * still share one fetch.
+     */
+    MAINTENANCE("maintenance", 3, Process.THREAD_PRIORITY_BACKGROUND
+                                  + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+
+    private Lane(String thread_name, int max_threads, int thread_priority) {
+      this.thread_name = thread_name;
+      this.max_threads = max_threads;
+      this.thread_priority = thread_priority;
+    }
+
+    final String thread_name;
+    final int max_threads;
+    final int thread_priority;
+  }
+
+  private final ThreadPoolExecutor[] m_pools;
+  private final AtomicInteger[] m_max_queue_depths;
+
+  public LanedExecutor() {
+    final Lane[] lanes = Lane.values();
+    m_pools = new ThreadPoolExecutor[lanes.length];
+    m_max_queue_depths = new AtomicInteger[lanes.length];
+    for (Lane lane : lanes) {
+      m_pools[lane.ordinal()] =
+          new ThreadPoolExecutor(lane.max_threads, lane.max_threads, 0L,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(), new LaneThreadFactory(lane));
+      m_max_queue_depths[lane.ordinal()] = new AtomicInteger();
+    }
+  }
+
+  /**
+   * Runs 'task' on one of 'lane's threads, eventually.
+   */
+  public void execute(Lane lane, Runnable task) {
+    final ThreadPoolExecutor pool = m_pools[lane.ordinal()];
+    pool.execute(task);
+    final int depth = pool.getQueue().size();
+    final AtomicInteger max_depth = m_max_queue_depths[lane.ordinal()];
+    while (true) {
+      final int old_max = max_depth.get();
+      if (depth <= old_max || max_depth.compareAndSet(old_max, depth)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * @return The number of tasks waiting for a thread in 'lane'.
+   */
+  public int getQueueDepth(Lane lane) {
+    return m_pools[lane.ordinal()].getQueue().size();
+  }
+
+  /**
+   * @return The largest number of tasks that have waited at once in 'lane'.
+   */
+  public int getMaxQueueDepth(Lane lane) {
+    return m_max_queue_depths[lane.ordinal()].get();
+  }
+
+  /**
+   * @return The approximate number of tasks currently running in 'lane'.
+   */
+  public int getActiveCount(Lane lane) {
+    return m_pools[lane.ordinal()].getActiveCount();
+  }
+
+  /**
+   * @return The approximate number of tasks 'lane' has finished.
+   */
+  public long getCompletedTaskCount(Lane lane) {
+    return m_pools[lane.ordinal()].getCompletedTaskCount();
+  }
+
+  private static class LaneThreadFactory implements ThreadFactory {
+    private final Lane m_lane;
+    private final AtomicInteger m_thread_count = new AtomicInteger();
+
+    LaneThreadFactory(Lane lane) {
+      m_lane = lane;
+    }
+
+    public Thread newThread(final Runnable r) {
+      return new Thread(new Runnable() {
+        public void run() {
+          Process.setThreadPriority(m_lane.thread_priority);
+          r.run();
+        }
+      }, "DroidMuni-" + m_lane.thread_name + "-"
+         + m_thread_count.incrementAndGet());
+    }
+  }
+}
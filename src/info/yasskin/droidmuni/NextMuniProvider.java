@@ -1,23 +1,26 @@
 package info.yasskin.droidmuni;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
@@ -39,12 +42,62 @@ public class NextMuniProvider extends ContentProvider {
       Uri.withAppendedPath(CONTENT_URI, "stops");
   public static final Uri PREDICTIONS_URI = Uri.withAppendedPath(CONTENT_URI,
       "predictions");
+  /**
+   * Predictions for many (route, stop) pairs at once. Build these URIs with
+   * buildMultiPredictionsUri().
+   */
+  public static final Uri MULTI_PREDICTIONS_URI = Uri.withAppendedPath(
+      CONTENT_URI, "multi_predictions");
+  /**
+   * A query parameter for PREDICTIONS_URI and MULTI_PREDICTIONS_URI that asks
+   * for only the first N arrivals at each stop, for compact views. Multi-stop
+   * queries stop merging after N; single-stop queries merge everything,
+   * since the merged list is cached for later queries with other limits,
+   * and then return N.
+   */
+  public static final String LIMIT_PARAMETER = "limit";
+  /**
+   * The shape of a route, as rows of (_id, path_index, points), where points
+   * is a blob for Polyline.decode(). Append the route tag.
+   */
+  public static final Uri PATHS_URI = Uri.withAppendedPath(CONTENT_URI,
+      "paths");
+  /**
+   * The routes and directions that serve a stop, as rows of (_id, stop_id,
+   * route_tag, direction_tag, stop_order), sorted by route and direction.
+   * Append the stop id. Only covers routes whose stops have been loaded.
+   */
+  public static final Uri STOP_ROUTES_URI = Uri.withAppendedPath(
+      CONTENT_URI, "stop_routes");
+  /**
+   * The stops closest to a point, nearest first, as rows of (_id, stop_id,
+   * title, lat, lon, distance_m). Build these URIs with
+   * buildNearbyStopsUri(). Only covers stops whose routes have been loaded.
+   */
+  public static final Uri NEARBY_STOPS_URI = Uri.withAppendedPath(
+      CONTENT_URI, "nearby_stops");
+  /**
+   * The widest NEARBY_STOPS_URI search, which keeps the number of cells read
+   * and bound parameters small.
+   */
+  public static final double MAX_NEARBY_RADIUS_M = 5000;
 
   private static final int NEXT_MUNI_ROUTES = 0;
   private static final int NEXT_MUNI_ROUTE_ID = 1;
   private static final int NEXT_MUNI_DIRECTIONS = 2;
   private static final int NEXT_MUNI_STOPS = 4;
   private static final int NEXT_MUNI_PREDICTIONS = 5;
+  private static final int NEXT_MUNI_MULTI_PREDICTIONS = 6;
+  private static final int NEXT_MUNI_PATHS = 7;
+  private static final int NEXT_MUNI_STOP_ROUTES = 8;
+  private static final int NEXT_MUNI_NEARBY_STOPS = 9;
+
+  /**
+   * The most (route, stop) pairs we put into a single predictionsForMultiStops
+   * request. NextBus accepts more, but this keeps the request URLs a reasonable
+   * length.
+   */
+  private static final int MAX_STOPS_PER_MULTI_REQUEST = 50;
 
   private static final UriMatcher sURLMatcher = new UriMatcher(
       UriMatcher.NO_MATCH);
@@ -55,6 +108,66 @@ public class NextMuniProvider extends ContentProvider {
     sURLMatcher.addURI(AUTHORITY, "directions/*", NEXT_MUNI_DIRECTIONS);
     sURLMatcher.addURI(AUTHORITY, "stops/*/*", NEXT_MUNI_STOPS);
     sURLMatcher.addURI(AUTHORITY, "predictions/#", NEXT_MUNI_PREDICTIONS);
+    sURLMatcher.addURI(AUTHORITY, "multi_predictions",
+        NEXT_MUNI_MULTI_PREDICTIONS);
+    sURLMatcher.addURI(AUTHORITY, "paths/*", NEXT_MUNI_PATHS);
+    sURLMatcher.addURI(AUTHORITY, "stop_routes/#", NEXT_MUNI_STOP_ROUTES);
+    sURLMatcher.addURI(AUTHORITY, "nearby_stops", NEXT_MUNI_NEARBY_STOPS);
+  }
+
+  /**
+   * Builds a MULTI_PREDICTIONS_URI query for the pairs (route_tags[i],
+   * stop_tags[i]). Note that these are stop tags, not the stop ids that
+   * PREDICTIONS_URI takes.
+   */
+  public static Uri buildMultiPredictionsUri(String[] route_tags,
+      String[] stop_tags) {
+    if (route_tags.length != stop_tags.length) {
+      throw new IllegalArgumentException(
+          "Need the same number of routes and stops");
+    }
+    Uri.Builder builder = MULTI_PREDICTIONS_URI.buildUpon();
+    for (int i = 0; i < route_tags.length; i++) {
+      builder.appendQueryParameter("stops", route_tags[i] + "|"
+                                            + stop_tags[i]);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Builds a NEARBY_STOPS_URI query for the 'limit' stops closest to (lat,
+   * lon) that are at most 'radius_m' meters away.
+   */
+  public static Uri buildNearbyStopsUri(double lat, double lon,
+      double radius_m, int limit) {
+    return NEARBY_STOPS_URI.buildUpon()
+        .appendQueryParameter("lat", Double.toString(lat))
+        .appendQueryParameter("lon", Double.toString(lon))
+        .appendQueryParameter("radius_m", Double.toString(radius_m))
+        .appendQueryParameter(LIMIT_PARAMETER, Integer.toString(limit))
+        .build();
+  }
+
+  /**
+   * Points every NextMuniProvider in the process at a stand-in for the NextBus
+   * feed, like "http://127.0.0.1:8080/service/publicXMLFeed". Pass null to go
+   * back to NextBus. For tests and load testing.
+   */
+  public static void setFeedUri(Uri feed_uri) {
+    NextMuniUriBuilder.setFeedUri(feed_uri);
+  }
+
+  private static volatile FeedArchive s_feed_archive = null;
+
+  /**
+   * Makes every NextMuniProvider in the process record the responses it
+   * fetches into 'archive', or, if 'archive' is open for replay, answer
+   * requests from it instead of the network. Pass null to go back to plain
+   * network fetches. The caller still owns 'archive' and closes it after
+   * unsetting it here.
+   */
+  public static void setFeedArchive(FeedArchive archive) {
+    s_feed_archive = archive;
   }
 
   @Override
@@ -69,14 +182,68 @@ public class NextMuniProvider extends ContentProvider {
     case NEXT_MUNI_STOPS:
       return "vnd.android.cursor.dir/vnd.yasskin.stop";
     case NEXT_MUNI_PREDICTIONS:
+    case NEXT_MUNI_MULTI_PREDICTIONS:
       return "vnd.android.cursor.dir/vnd.yasskin.prediction";
+    case NEXT_MUNI_PATHS:
+      return "vnd.android.cursor.dir/vnd.yasskin.path";
+    case NEXT_MUNI_STOP_ROUTES:
+      return "vnd.android.cursor.dir/vnd.yasskin.stop_route";
+    case NEXT_MUNI_NEARBY_STOPS:
+      return "vnd.android.cursor.dir/vnd.yasskin.nearby_stop";
     default:
       throw new IllegalArgumentException("Unknown URI " + uri);
     }
   }
 
-  // TODO private final DefaultHttpClient mClient = new DefaultHttpClient();
   private boolean m_someone_fetching_routes = false; // Guarded by db.
+  /**
+   * Coalesces concurrent getAndParse() calls for the same request URI.
+   */
+  private final SingleFlight<String, Parser> m_in_flight =
+      new SingleFlight<String, Parser>();
+  private final AtomicLong m_route_configs_stored = new AtomicLong();
+  private final AtomicLong m_route_configs_unchanged = new AtomicLong();
+  // Time fillDbForRoute() spent holding the write lock.
+  private final AtomicLong m_route_lock_holds = new AtomicLong();
+  private final AtomicLong m_route_lock_ns = new AtomicLong();
+  private final AtomicLong m_route_lock_max_ns = new AtomicLong();
+  // Time fillDbForRoute() spent fetching and parsing, without the lock.
+  private final AtomicLong m_route_fetches = new AtomicLong();
+  private final AtomicLong m_route_fetch_ns = new AtomicLong();
+  private final AtomicLong m_route_refreshes_dropped = new AtomicLong();
+  /**
+   * Coalesces concurrent fillDbForRoute() calls for the same route tag.
+   */
+  private final SingleFlight<String, Void> m_route_refreshes =
+      new SingleFlight<String, Void>();
+  private final RouteGraphCache m_route_graphs = new RouteGraphCache(
+      RouteGraphCache.DEFAULT_MAX_WEIGHT);
+  private final PredictionCache m_prediction_cache = new PredictionCache(
+      PredictionCache.DEFAULT_TTL_MS, PredictionCache.DEFAULT_MAX_STOPS);
+  /**
+   * Route paths are drawn over street maps, so anything much under a lane
+   * width is wasted storage. NextBus's paths often have points every few
+   * meters along straight streets.
+   */
+  private static final double DEFAULT_PATH_TOLERANCE_M = 5;
+  private volatile double m_path_tolerance_m = DEFAULT_PATH_TOLERANCE_M;
+
+  /**
+   * How many times fetchAndParse() tries a request that keeps failing with
+   * IO_ERROR or RETRY.
+   */
+  private static final int MAX_FETCH_ATTEMPTS = 3;
+  private final Backoff m_backoff = new Backoff(500, 8000);
+  /**
+   * Maps a NextBus command, like "routeConfig", to the breaker for requests
+   * using it. Guarded by itself.
+   */
+  private final HashMap<String, CircuitBreaker> m_circuit_breakers =
+      new HashMap<String, CircuitBreaker>();
+  private volatile long m_circuit_breaker_open_ms =
+      CircuitBreaker.INITIAL_OPEN_MS;
+  private final FailureCache m_failure_cache = new FailureCache(
+      FailureCache.DEFAULT_TTL_MS);
   // The next field is set in onCreate() and never modified again.
   private Db db;
 
@@ -84,7 +251,7 @@ public class NextMuniProvider extends ContentProvider {
   public boolean onCreate() {
     Context context = getContext();
     db = new Db(context);
-    Globals.EXECUTOR.execute(new Runnable() {
+    Globals.EXECUTOR.execute(LanedExecutor.Lane.PREFETCH, new Runnable() {
       public void run() {
         // Prime the routes list eagerly so it's more likely it'll
         // be ready by the time we need it. Don't, however, block onCreate()
@@ -128,15 +295,16 @@ public class NextMuniProvider extends ContentProvider {
         // If our routes exist but are too old, and the caller doesn't want to
         // block, spawn this task into the background pool and
         // return immediately.
-        Globals.EXECUTOR.execute(new Runnable() {
-          public void run() {
-            try {
-              tryFetchRoutes(REFETCH_ROUTES_BLOCK);
-            } catch (Exception e) {
-              Log.e("DroidMuni", "tryFetchRoutes failed", e);
-            }
-          }
-        });
+        Globals.EXECUTOR.execute(LanedExecutor.Lane.MAINTENANCE,
+            new Runnable() {
+              public void run() {
+                try {
+                  tryFetchRoutes(REFETCH_ROUTES_BLOCK);
+                } catch (Exception e) {
+                  Log.e("DroidMuni", "tryFetchRoutes failed", e);
+                }
+              }
+            });
         return;
       }
       // Otherwise our routes exist and are too old, and we're already in a
@@ -182,13 +350,24 @@ public class NextMuniProvider extends ContentProvider {
    * @return true if the HTTP call succeeded.
    */
   private Boolean getRoutes() {
+    final String request_uri =
+        NextMuniUriBuilder.buildRouteListUri("sf-muni").toString();
     RouteListParser parser =
-        getAndParse(NextMuniUriBuilder.buildRouteListUri("sf-muni").toString(),
-            RouteListParser.class);
+        getAndParse(request_uri, RouteListParser.FACTORY,
+            db.hasRoutes() ? FETCH_IF_MODIFIED : FETCH_ALWAYS);
     if (parser == null) {
       return false;
     }
-    db.setRoutes(parser.getRoutes());
+    if (parser.getResult() == Parser.ResultState.NOT_MODIFIED) {
+      db.touchRoutes();
+      return true;
+    }
+    // Copy the routes since setRoutes() consumes its argument and other callers
+    // may share this parser.
+    db.setRoutes(new HashMap<String, Db.Route>(parser.getRoutes()));
+    // Routes that were deleted and re-added have new _ids.
+    m_route_graphs.invalidateAll();
+    db.setValidators(request_uri, parser.getETag(), parser.getLastModified());
     return true;
   }
 
@@ -213,82 +392,323 @@ public class NextMuniProvider extends ContentProvider {
       return queryStops("sf-muni", uri.getPathSegments().get(1),
           uri.getPathSegments().get(2));
     case NEXT_MUNI_PREDICTIONS:
-      return queryPredictions("sf-muni", uri.getPathSegments().get(1));
+      return queryPredictions("sf-muni", uri.getPathSegments().get(1),
+          getLimit(uri));
+    case NEXT_MUNI_MULTI_PREDICTIONS:
+      return queryMultiPredictions("sf-muni", uri.getQueryParameters("stops"),
+          getLimit(uri));
+    case NEXT_MUNI_PATHS:
+      return queryPaths("sf-muni", uri.getPathSegments().get(1));
+    case NEXT_MUNI_STOP_ROUTES:
+      return queryStopRoutes(uri.getPathSegments().get(1));
+    case NEXT_MUNI_NEARBY_STOPS:
+      return queryNearbyStops(getDouble(uri, "lat"), getDouble(uri, "lon"),
+          getDouble(uri, "radius_m"), getLimit(uri));
     default:
       throw new IllegalArgumentException("Unknown URI " + uri);
     }
   }
 
   /**
-   * Requests route data from NextBus. If the route data could be parsed,
-   * returns the successful Parser. Otherwise, returns null.
-   * 
-   * @param agency_tag
-   * @param route_tag
-   * @return
-   * @throws IllegalStateException
+   * @return The LIMIT_PARAMETER of 'uri', or Integer.MAX_VALUE if it has none.
    */
-  private RouteConfigParser getAndParseRoute(String agency_tag, String route_tag) {
-    Uri request_uri =
-        NextMuniUriBuilder.buildRouteDetailsUri(agency_tag, route_tag);
-    return getAndParse(request_uri.toString(), RouteConfigParser.class);
+  private static int getLimit(Uri uri) {
+    final String limit = uri.getQueryParameter(LIMIT_PARAMETER);
+    if (limit == null) {
+      return Integer.MAX_VALUE;
+    }
+    try {
+      final int result = Integer.parseInt(limit);
+      if (result > 0) {
+        return result;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through.
+    }
+    throw new IllegalArgumentException("Bad limit in " + uri);
+  }
+
+  /**
+   * Passed to getAndParse() to always fetch and parse the whole document.
+   */
+  private static final int FETCH_ALWAYS = 0;
+  /**
+   * Passed to getAndParse() to send the validators we stored for the URI with
+   * Db.setValidators(), if any. If NextBus says the document hasn't changed,
+   * getAndParse() returns a parser whose result is NOT_MODIFIED.
+   */
+  private static final int FETCH_IF_MODIFIED = 1;
+
+  private <ParserT extends Parser> ParserT getAndParse(String request_uri,
+      Parser.Factory<ParserT> parsers) {
+    return getAndParse(request_uri, parsers, FETCH_ALWAYS);
   }
 
   /**
    * Requests a URI from NextBus, parses it with the specified parser, and
-   * returns the parser if it succeeded.
+   * returns the parser if it succeeded. Concurrent requests for the same URI
+   * share a single fetch, so the returned parser may also be in use by other
+   * threads and must not be modified. Each URI must always be parsed with the
+   * same kind of parser and fetch mode.
    * 
    * @param request_uri
+   * @param fetch_mode
+   *          FETCH_ALWAYS or FETCH_IF_MODIFIED.
    * @return
    * @throws IllegalStateException
    */
-  private <ParserT extends Parser> ParserT getAndParse(String request_uri,
-      Class<ParserT> parserT) {
+  @SuppressWarnings("unchecked")
+  private <ParserT extends Parser> ParserT getAndParse(
+      final String request_uri, final Parser.Factory<ParserT> parsers,
+      final int fetch_mode) {
+    // Safe as long as every caller passes the same kind of factory for a
+    // given URI, as documented above.
+    return (ParserT) m_in_flight.run(request_uri,
+        new SingleFlight.Call<Parser>() {
+          public Parser call() {
+            return fetchAndParse(request_uri, parsers, fetch_mode);
+          }
+        });
+  }
+
+  /**
+   * Does the work of getAndParse() without coalescing concurrent requests.
+   * Retries requests that fail in ways that might be temporary, and fails fast
+   * for URIs that just failed or commands whose circuit breaker is open.
+   */
+  private <ParserT extends Parser> ParserT fetchAndParse(String request_uri,
+      Parser.Factory<ParserT> parsers, int fetch_mode) {
+    final CircuitBreaker breaker = getCircuitBreaker(request_uri);
+    if (m_failure_cache.recentlyFailed(request_uri,
+        System.currentTimeMillis())) {
+      Log.i("DroidMuni", "Skipping recently failed " + request_uri);
+      return null;
+    }
+    if (!breaker.allowRequest(System.currentTimeMillis())) {
+      Log.i("DroidMuni", "Skipping " + request_uri + " because of " + breaker);
+      return null;
+    }
+
+    // Every way out of here has to tell the breaker how the request went,
+    // including exceptions out of the HTTP client, the database or a parser.
+    boolean recorded = false;
+    try {
+      final ParserT parser = parsers.newParser();
+      for (int attempt = 1; true; attempt++) {
+        if (attempt > 1) {
+          parser.reset();
+        }
+        fetchOnce(request_uri, parser, fetch_mode);
+        final Parser.ResultState result = parser.getResult();
+        if (result == Parser.ResultState.SUCCESS
+            || result == Parser.ResultState.NOT_MODIFIED
+            || result == Parser.ResultState.UNCHANGED) {
+          recorded = true;
+          breaker.recordSuccess();
+          m_failure_cache.recordSuccess(request_uri);
+          return parser;
+        }
+        if (result != Parser.ResultState.RETRY
+            && result != Parser.ResultState.IO_ERROR) {
+          // The server is fine; it just didn't like this request.
+          recorded = true;
+          breaker.recordSuccess();
+          break;
+        }
+        if (attempt >= MAX_FETCH_ATTEMPTS) {
+          break;
+        }
+        try {
+          Thread.sleep(m_backoff.delayMs(attempt));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        Log.i("DroidMuni", "Retrying " + request_uri);
+      }
+    } finally {
+      if (!recorded) {
+        breaker.recordFailure(System.currentTimeMillis());
+      }
+    }
+    m_failure_cache.recordFailure(request_uri, System.currentTimeMillis());
+    return null;
+  }
+
+  /**
+   * Sends a single request and parses the response into 'parser', which must
+   * be new or reset. Afterward, the parser's result says whether the request
+   * succeeded and, if not, whether it's worth retrying (RETRY or IO_ERROR).
+   */
+  private void fetchOnce(String request_uri, Parser parser, int fetch_mode) {
+    final FeedArchive archive = s_feed_archive;
+    if (archive != null && archive.getMode() == FeedArchive.Mode.REPLAY) {
+      replayOnce(archive, request_uri, parser);
+      logFailure(request_uri, parser);
+      return;
+    }
+
     Log.i("DroidMuni", "Requesting " + request_uri);
     HttpGet dir_request = new HttpGet(request_uri);
-    InputStream get_response;
+    if (fetch_mode == FETCH_IF_MODIFIED) {
+      final String[] validators = db.getValidators(request_uri);
+      if (validators != null) {
+        if (validators[0] != null) {
+          dir_request.addHeader("If-None-Match", validators[0]);
+        }
+        if (validators[1] != null) {
+          dir_request.addHeader("If-Modified-Since", validators[1]);
+        }
+      }
+    }
+    HttpEntity entity = null;
     try {
-      DefaultHttpClient mClient = new DefaultHttpClient();
-
-      HttpResponse response = mClient.execute(dir_request);
-      // TODO(jyasskin): Figure out how best to guarantee that the
-      // response gets closed.
-      get_response = response.getEntity().getContent();
+      HttpResponse response = SharedHttpClient.get().execute(dir_request);
+      entity = response.getEntity();
+      final int status = response.getStatusLine().getStatusCode();
+      if (status == HttpStatus.SC_NOT_MODIFIED
+          && fetch_mode == FETCH_IF_MODIFIED) {
+        Log.i("DroidMuni", "Not modified: " + request_uri);
+        parser.markNotModified();
+        return;
+      }
+      if (status != HttpStatus.SC_OK || entity == null) {
+        Log.e("DroidMuni", "Cannot get " + request_uri + ": "
+                           + response.getStatusLine());
+        // Server errors may go away by themselves; anything else won't.
+        parser.markFailed(status >= 500 ? Parser.ResultState.RETRY
+            : Parser.ResultState.PARSE_ERROR);
+        return;
+      }
+      parser.setValidators(headerValue(response, "ETag"), headerValue(
+          response, "Last-Modified"));
+      InputStream get_response = entity.getContent();
+      try {
+        if (archive != null) {
+          final byte[] body = FeedArchive.readFully(get_response);
+          recordResponse(archive, request_uri, body);
+          parser.parse(new ByteArrayInputStream(body));
+        } else {
+          parser.parse(get_response);
+        }
+      } finally {
+        get_response.close();
+      }
     } catch (ClientProtocolException e) {
       Log.e("DroidMuni", "Cannot get " + request_uri, e);
       dir_request.abort();
-      return null;
+      parser.markFailed(Parser.ResultState.IO_ERROR);
+      return;
     } catch (IOException e) {
       Log.e("DroidMuni", "Cannot get " + request_uri, e);
       dir_request.abort();
-      return null;
+      parser.markFailed(Parser.ResultState.IO_ERROR);
+      return;
+    } finally {
+      releaseEntity(request_uri, dir_request, entity, parser);
     }
+    logFailure(request_uri, parser);
+  }
 
-    ParserT parser;
-    try {
-      parser = (ParserT) parserT.newInstance();
-    } catch (IllegalAccessException e) {
-      throw new IllegalArgumentException(
-          "Passed " + parserT.getName()
-              + " to getAndParse(), without an accessible constructor", e);
-    } catch (InstantiationException e) {
-      throw new IllegalArgumentException(
-          "Passed " + parserT.getName()
-              + " to getAndParse(), which cannot be constructed", e);
-    }
-    parser.parse(get_response);
+  /**
+   * Logs why 'parser' failed, if it did.
+   */
+  private static void logFailure(String request_uri, Parser parser) {
     switch (parser.getResult()) {
-    case SUCCESS:
-      return parser;
     case NOT_DONE:
       Log.e("DroidMuni", "Parser didn't finish?!?");
+      parser.markFailed(Parser.ResultState.PARSE_ERROR);
       break;
     case IO_ERROR:
     case PARSE_ERROR:
       Log.e("DroidMuni", "Failed to parse response");
       break;
+    case RETRY:
+      Log.w("DroidMuni", "NextBus asked us to retry " + request_uri);
+      break;
+    }
+  }
+
+  /**
+   * Parses the next recorded response to 'request_uri' out of 'archive'. A
+   * request that was never recorded fails without a retry, since asking again
+   * won't make it appear.
+   */
+  private static void replayOnce(FeedArchive archive, String request_uri,
+      Parser parser) {
+    Log.i("DroidMuni", "Replaying " + request_uri);
+    try {
+      final byte[] body = archive.replay(request_uri);
+      if (body == null) {
+        Log.e("DroidMuni", "No recorded response for " + request_uri);
+        parser.markFailed(Parser.ResultState.PARSE_ERROR);
+        return;
+      }
+      parser.parse(new ByteArrayInputStream(body));
+    } catch (IOException e) {
+      Log.e("DroidMuni", "Cannot replay " + request_uri, e);
+      parser.markFailed(Parser.ResultState.PARSE_ERROR);
+    }
+  }
+
+  /**
+   * Appends 'body' to 'archive'. A full disk shouldn't break the app, so
+   * failures are only logged.
+   */
+  private static void recordResponse(FeedArchive archive, String request_uri,
+      byte[] body) {
+    try {
+      archive.record(request_uri, System.currentTimeMillis(), body);
+    } catch (IOException e) {
+      Log.w("DroidMuni", "Failed to record " + request_uri, e);
+    }
+  }
+
+  /**
+   * @return The circuit breaker for the NextBus command 'request_uri' uses.
+   */
+  private CircuitBreaker getCircuitBreaker(String request_uri) {
+    String command = Uri.parse(request_uri).getQueryParameter("command");
+    if (command == null) {
+      command = "";
+    }
+    synchronized (m_circuit_breakers) {
+      CircuitBreaker breaker = m_circuit_breakers.get(command);
+      if (breaker == null) {
+        breaker = new CircuitBreaker(command, m_circuit_breaker_open_ms);
+        m_circuit_breakers.put(command, breaker);
+      }
+      return breaker;
+    }
+  }
+
+  private static String headerValue(HttpResponse response, String name) {
+    final Header header = response.getFirstHeader(name);
+    return header == null ? null : header.getValue();
+  }
+
+  /**
+   * Returns the connection behind 'entity' to the shared pool. If the parser
+   * stopped partway through the response, the connection is in an unknown
+   * state, so we abort the request instead of reading the rest.
+   */
+  private static void releaseEntity(String request_uri, HttpGet request,
+      HttpEntity entity, Parser parser) {
+    if (entity == null) {
+      return;
+    }
+    if (parser.getResult() != Parser.ResultState.SUCCESS
+        && parser.getResult() != Parser.ResultState.NOT_MODIFIED
+        && parser.getResult() != Parser.ResultState.UNCHANGED) {
+      request.abort();
+      return;
+    }
+    try {
+      entity.consumeContent();
+    } catch (IOException e) {
+      Log.w("DroidMuni", "Failed to release " + request_uri, e);
+      request.abort();
     }
-    return null;
   }
 
   /**
@@ -303,42 +723,154 @@ public class NextMuniProvider extends ContentProvider {
    *          When getting the route fails, we set its "last update" time back
    *          to this value so the next query will try again.
    */
-  private void fillDbForRoute(String agency_tag, Db.Route route) {
-    final SQLiteDatabase tables = db.getWritableDatabase();
-    tables.beginTransaction();
-    try {
-      long last_update =
-          DatabaseUtils.longForQuery(tables,
-              "SELECT last_direction_update_ms FROM Routes WHERE _id == ?",
-              new String[] { route.id + "" });
-      if (last_update >= System.currentTimeMillis() - ONE_DAY) {
-        // Someone else updated it first. Skip the work.
-        return;
+  private void fillDbForRoute(final String agency_tag, final Db.Route route) {
+    // Routes refresh independently, in parallel, up to the apply step, which
+    // SQLite serializes. Concurrent refreshes of the same route share one
+    // fetch.
+    m_route_refreshes.run(route.tag, new SingleFlight.Call<Void>() {
+      public Void call() {
+        refreshRoute(agency_tag, route);
+        return null;
       }
-      RouteConfigParser parser = getAndParseRoute(agency_tag, route.tag);
-      if (parser == null) {
+    });
+  }
+
+  private void refreshRoute(String agency_tag, Db.Route route) {
+    // 1. Check freshness without taking the write lock.
+    final long last_update;
+    final byte[] stored_digest;
+    final Cursor stored =
+        db.getReadableDatabase().rawQuery(
+            "SELECT last_direction_update_ms, config_digest"
+                + " FROM Routes WHERE _id == ?",
+            new String[] { route.id + "" });
+    try {
+      if (!stored.moveToFirst()) {
+        // setRoutes() deleted the route.
         return;
       }
-      synchronized (db) {
-        for (int i = 0; i < parser.getStops().size(); i++) {
-          db.addStop(parser.getStops().valueAt(i), route.id);
+      last_update = stored.getLong(0);
+      stored_digest = stored.isNull(1) ? null : stored.getBlob(1);
+    } finally {
+      stored.close();
+    }
+    if (last_update >= System.currentTimeMillis() - ONE_DAY) {
+      // Someone else updated it first. Skip the work.
+      return;
+    }
+
+    // 2. Fetch and parse into memory, still without the lock.
+    final String request_uri =
+        NextMuniUriBuilder.buildRouteDetailsUri(agency_tag, route.tag)
+            .toString();
+    // Only a route whose stops we've stored before can use a 304. A route
+    // that was deleted and re-added by setRoutes() has a new _id and no
+    // directions even though its validators may still be around.
+    final int fetch_mode = last_update == 0 ? FETCH_ALWAYS : FETCH_IF_MODIFIED;
+    final RouteBatch batch = new RouteBatch();
+    final Parser.Factory<RouteConfigParser> batch_parsers =
+        new Parser.Factory<RouteConfigParser>() {
+          public RouteConfigParser newParser() {
+            return new RouteConfigParser(batch, m_path_tolerance_m,
+                stored_digest);
+          }
+        };
+    final long fetch_start_ns = System.nanoTime();
+    final RouteConfigParser parser =
+        fetchAndParse(request_uri, batch_parsers, fetch_mode);
+    m_route_fetch_ns.addAndGet(System.nanoTime() - fetch_start_ns);
+    m_route_fetches.incrementAndGet();
+    if (parser == null) {
+      return;
+    }
+
+    // 3. Apply it in a short transaction, unless another thread applied a
+    // refresh while we were fetching.
+    final SQLiteDatabase tables = db.getWritableDatabase();
+    boolean committed = false;
+    tables.beginTransaction();
+    final long lock_start_ns = System.nanoTime();
+    try {
+      final Cursor current =
+          tables.rawQuery("SELECT last_direction_update_ms FROM Routes"
+                          + " WHERE _id == ?", new String[] { route.id + "" });
+      try {
+        if (!current.moveToFirst() || current.getLong(0) != last_update) {
+          Log.d("DroidMuni", "Route " + route.tag
+                             + " changed during its refresh; dropping ours");
+          m_route_refreshes_dropped.incrementAndGet();
+          return;
         }
+      } finally {
+        current.close();
       }
 
-      final Map<String, Db.Direction> dir_map = parser.getDirections();
-      db.setDirections(route.id, dir_map);
-
-      // Record that the directions and stops are now up to date.
-      ContentValues values = new ContentValues(1);
-      values.put("last_direction_update_ms", System.currentTimeMillis());
-      tables.update("Routes", values, "_id = ?", new String[] { route.id + "" });
+      byte[] digest = null;
+      switch (parser.getResult()) {
+      case SUCCESS:
+        m_route_configs_stored.incrementAndGet();
+        final Db.RouteWriter writer =
+            db.openRouteWriter(tables, route.id, batch.getStopIds());
+        try {
+          batch.replay(writer);
+          writer.finish();
+          Log.d("DroidMuni", "Synced route " + route.tag + " with "
+                             + writer.getWriteCount() + " writes");
+        } finally {
+          writer.close();
+        }
+        digest = parser.getDigest();
+        db.setValidators(request_uri, parser.getETag(),
+            parser.getLastModified());
+        break;
+      case UNCHANGED:
+        m_route_configs_unchanged.incrementAndGet();
+        Log.d("DroidMuni", "Route " + route.tag + " is unchanged");
+        db.setValidators(request_uri, parser.getETag(),
+            parser.getLastModified());
+        break;
+      }
 
+      markRouteUpdated(tables, route, digest);
       tables.setTransactionSuccessful();
+      committed = true;
     } finally {
       tables.endTransaction();
+      recordRouteLockHold(System.nanoTime() - lock_start_ns);
+      if (committed) {
+        m_route_graphs.invalidate(route.tag);
+      }
     }
   }
 
+  private void recordRouteLockHold(long held_ns) {
+    m_route_lock_ns.addAndGet(held_ns);
+    m_route_lock_holds.incrementAndGet();
+    long max;
+    while (held_ns > (max = m_route_lock_max_ns.get())) {
+      if (m_route_lock_max_ns.compareAndSet(max, held_ns)) {
+        break;
+      }
+    }
+    Log.d("DroidMuni", "Held the write lock for " + held_ns / 1000
+                       + " us to apply a route");
+  }
+
+  /**
+   * Records that the directions and stops of 'route' are now up to date, and
+   * if 'digest' isn't null, that they came from a routeConfig with that
+   * digest.
+   */
+  private static void markRouteUpdated(SQLiteDatabase tables, Db.Route route,
+      byte[] digest) {
+    ContentValues values = new ContentValues(2);
+    values.put("last_direction_update_ms", System.currentTimeMillis());
+    if (digest != null) {
+      values.put("config_digest", digest);
+    }
+    tables.update("Routes", values, "_id = ?", new String[] { route.id + "" });
+  }
+
   /**
    * If our cache is out of date, requeries NextMuni's website for direction and
    * stop data on the_route.
@@ -353,27 +885,55 @@ public class NextMuniProvider extends ContentProvider {
     } else if (last_directions_update < now - ONE_DAY) {
       // The data is a little stale, so update it in the background, but
       // return quickly with the cached data.
-      Globals.EXECUTOR.execute(new Runnable() {
-        public void run() {
-          fillDbForRoute(agency_tag, the_route);
-        }
-      });
+      Globals.EXECUTOR.execute(LanedExecutor.Lane.MAINTENANCE,
+          new Runnable() {
+            public void run() {
+              fillDbForRoute(agency_tag, the_route);
+            }
+          });
     }
   }
 
+  /**
+   * @return The cached graph of 'route_tag', loading it from the database if
+   *         necessary.
+   */
+  private RouteGraph getRouteGraph(String route_tag) {
+    RouteGraph graph = m_route_graphs.get(route_tag);
+    if (graph == null) {
+      final long version = m_route_graphs.getVersion();
+      graph = new RouteGraph(db.getReadableDatabase(), db.getRoute(route_tag));
+      m_route_graphs.put(graph, version);
+    }
+    return graph;
+  }
+
   Cursor queryDirections(final String agency_tag, final String route_tag) {
+    maybeUpdateRouteData(agency_tag, getRouteGraph(route_tag).route);
+
+    // Now use the local cache to return the directions list. A blocking update
+    // replaced the graph.
+    return getRouteGraph(route_tag).directionsCursor();
+  }
+
+  private Cursor queryStops(String agency_tag, String route_tag,
+      String direction_tag) {
+    maybeUpdateRouteData(agency_tag, getRouteGraph(route_tag).route);
+
+    return getRouteGraph(route_tag).stopsCursor(direction_tag);
+  }
+
+  private Cursor queryPaths(String agency_tag, String route_tag) {
     final Db.Route the_route = db.getRoute(route_tag);
     maybeUpdateRouteData(agency_tag, the_route);
 
-    // Now use the local cache to return the directions list.
     Cursor result =
         db.getReadableDatabase().rawQuery(
-            "SELECT Directions._id AS _id, Routes.tag AS route_tag,"
-                + " Directions.tag AS tag, Directions.title AS title"
-                + " FROM Directions INNER JOIN Routes"
-                + " ON (Directions.route_id == Routes._id)"
-                + " WHERE Routes.tag == ? AND use_for_ui != 0"
-                + " ORDER BY Directions.tag ASC", new String[] { route_tag });
+            "SELECT RoutePaths.rowid AS _id, path_index, points"
+                + " FROM RoutePaths JOIN Routes"
+                + " ON (RoutePaths.route_id == Routes._id)"
+                + " WHERE Routes.tag == ? ORDER BY path_index ASC",
+            new String[] { route_tag });
     if (result.getCount() == 0) {
       result.close();
       return null;
@@ -381,24 +941,18 @@ public class NextMuniProvider extends ContentProvider {
     return result;
   }
 
-  private Cursor queryStops(String agency_tag, String route_tag,
-      String direction_tag) {
-    final Db.Route the_route = db.getRoute(route_tag);
-    maybeUpdateRouteData(agency_tag, the_route);
-
+  /**
+   * Doesn't fetch anything: a stop's routes are only known once those routes
+   * have been loaded, and loading every route to answer this would take
+   * minutes.
+   */
+  private Cursor queryStopRoutes(String stop_id) {
     Cursor result =
         db.getReadableDatabase().rawQuery(
-            "SELECT Stops._id AS _id, Routes.tag AS route_tag,"
-                + " Directions.tag AS direction_tag, Stops._id AS stop_id,"
-                + " Stops.title AS title, latitude AS lat, longitude AS lon"
-                + " FROM Routes JOIN Directions"
-                + " ON (Routes._id == Directions.route_id)"
-                + " JOIN DirectionStops"
-                + " ON (Directions._id == DirectionStops.direction)"
-                + " JOIN Stops ON (DirectionStops.stop == Stops._id)"
-                + " WHERE Routes.tag == ? AND Directions.tag == ?"
-                + " ORDER BY stop_order ASC",
-            new String[] { route_tag, direction_tag });
+            "SELECT rowid AS _id, stop AS stop_id, route_tag, direction_tag,"
+                + " stop_order FROM StopRoutes WHERE stop == ?"
+                + " ORDER BY route_tag, direction_tag",
+            new String[] { stop_id });
     if (result.getCount() == 0) {
       result.close();
       return null;
@@ -406,42 +960,295 @@ public class NextMuniProvider extends ContentProvider {
     return result;
   }
 
-  private Cursor queryPredictions(String agency_tag, String stop_id) {
+  /**
+   * @return The 'name' query parameter of 'uri', which must be a number.
+   */
+  private static double getDouble(Uri uri, String name) {
+    final String value = uri.getQueryParameter(name);
+    if (value != null) {
+      try {
+        return Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+        // Fall through.
+      }
+    }
+    throw new IllegalArgumentException("Bad " + name + " in " + uri);
+  }
+
+  /** A stop found by queryNearbyStops(), ordered by distance. */
+  private static final class NearbyStop implements Comparable<NearbyStop> {
+    final long id;
+    final String title;
+    final double lat;
+    final double lon;
+    final double distance_m;
+
+    NearbyStop(long id, String title, double lat, double lon,
+        double distance_m) {
+      this.id = id;
+      this.title = title;
+      this.lat = lat;
+      this.lon = lon;
+      this.distance_m = distance_m;
+    }
+
+    public int compareTo(NearbyStop another) {
+      return Double.compare(distance_m, another.distance_m);
+    }
+  }
+
+  /**
+   * Reads only the stops in the StopGrid cells around (lat, lon), one index
+   * range per row of cells, and then measures and sorts just those. Like
+   * queryStopRoutes(), doesn't fetch anything.
+   */
+  private Cursor queryNearbyStops(double lat, double lon, double radius_m,
+      int limit) {
+    if (!(radius_m > 0 && radius_m <= MAX_NEARBY_RADIUS_M)) {
+      throw new IllegalArgumentException("Bad radius " + radius_m);
+    }
+    final long[] ranges = StopGrid.cellRangesWithin(lat, lon, radius_m);
+    final StringBuilder sql = new StringBuilder();
+    final String[] args = new String[ranges.length];
+    for (int i = 0; i < ranges.length; i += 2) {
+      if (i > 0) {
+        sql.append(" UNION ALL ");
+      }
+      sql.append("SELECT _id, title, latitude, longitude FROM Stops"
+                 + " WHERE grid_cell BETWEEN ? AND ?");
+      args[i] = Long.toString(ranges[i]);
+      args[i + 1] = Long.toString(ranges[i + 1]);
+    }
+
+    final ArrayList<NearbyStop> nearby = new ArrayList<NearbyStop>();
+    Cursor stops = db.getReadableDatabase().rawQuery(sql.toString(), args);
+    try {
+      for (stops.moveToFirst(); !stops.isAfterLast(); stops.moveToNext()) {
+        final double stop_lat = stops.getDouble(2);
+        final double stop_lon = stops.getDouble(3);
+        final double distance_m =
+            StopGrid.distanceMeters(lat, lon, stop_lat, stop_lon);
+        if (distance_m <= radius_m) {
+          nearby.add(new NearbyStop(stops.getLong(0), stops.getString(1),
+              stop_lat, stop_lon, distance_m));
+        }
+      }
+    } finally {
+      stops.close();
+    }
+    if (nearby.isEmpty()) {
+      return null;
+    }
+    Collections.sort(nearby);
+
+    final MatrixCursor result =
+        new MatrixCursor(new String[] { "_id", "stop_id", "title", "lat",
+                                       "lon", "distance_m" });
+    for (int i = 0; i < nearby.size() && i < limit; i++) {
+      final NearbyStop stop = nearby.get(i);
+      result.addRow(new Object[] { stop.id, stop.id, stop.title, stop.lat,
+                                  stop.lon, stop.distance_m });
+    }
+    return result;
+  }
+
+  private Cursor queryPredictions(String agency_tag, String stop_id,
+      int limit) {
+    final long now = System.currentTimeMillis();
+    PredictionCache.Entry cached =
+        m_prediction_cache.get(agency_tag, stop_id, now);
+    if (cached != null) {
+      // Predictions that have already passed were only interesting when the
+      // user first saw them.
+      return buildPredictionCursor(stop_id, cached, now, limit);
+    }
+
     Uri prediction_uri = null;
     prediction_uri = NextMuniUriBuilder.buildPredictionUri(agency_tag, stop_id);
 
     PredictionsParser parser =
-        getAndParse(prediction_uri.toString(), PredictionsParser.class);
+        getAndParse(prediction_uri.toString(), PredictionsParser.FACTORY);
     if (parser == null) {
       return null;
     }
 
-    List<Db.Prediction> predictions = parser.getPredictions();
-    Collections.sort(predictions);
+    PredictionCache.Entry fetched =
+        new PredictionCache.Entry(parser.getColumns(), now);
+    m_prediction_cache.put(agency_tag, stop_id, fetched);
+    return buildPredictionCursor(stop_id, fetched, Long.MIN_VALUE, limit);
+  }
 
-    HashMap<String, String> direction_tag2title =
-        parser.getDirectionTag2Title();
+  /**
+   * Builds the PREDICTIONS_URI result for 'stop_id' out of the first 'limit'
+   * predictions in 'entry' at or after 'earliest_time'.
+   */
+  private static Cursor buildPredictionCursor(String stop_id,
+      PredictionCache.Entry entry, long earliest_time, int limit) {
+    final PredictionCursor.Columns columns = entry.columns;
+    final int from = columns.firstAtOrAfter(earliest_time);
+    final int to =
+        limit >= columns.size() - from ? columns.size() : from + limit;
+    return new PredictionCursor(columns, from, to, "stop_id", stop_id);
+  }
 
-    String[] columns =
-        { "_id", "route_tag", "direction_tag", "direction_title", "stop_id",
-         "predicted_time" };
-    MatrixCursor result = new MatrixCursor(columns);
-    int id = 0;
-    for (Db.Prediction prediction : predictions) {
-      String direction_name = direction_tag2title.get(prediction.direction_tag);
-      if (direction_name == null) {
-        direction_name = prediction.direction_tag;
+  /**
+   * Fetches predictions for many (route, stop) pairs using as few
+   * predictionsForMultiStops requests as possible, and returns them in one
+   * cursor grouped by stop, in the order the stops were requested, and sorted
+   * by time within each stop.
+   * 
+   * @param route_stops
+   *          Strings of the form "route_tag|stop_tag".
+   * @param limit
+   *          The most predictions to return for each stop.
+   */
+  private Cursor queryMultiPredictions(String agency_tag,
+      List<String> route_stops, int limit) {
+    final int count = route_stops.size();
+    final String[] route_tags = new String[count];
+    final String[] stop_tags = new String[count];
+    final HashMap<String, Integer> stop_order = new HashMap<String, Integer>();
+    for (int i = 0; i < count; i++) {
+      final String route_stop = route_stops.get(i);
+      final int separator = route_stop.indexOf('|');
+      if (separator < 0) {
+        throw new IllegalArgumentException("Malformed stop: " + route_stop);
+      }
+      route_tags[i] = route_stop.substring(0, separator);
+      stop_tags[i] = route_stop.substring(separator + 1);
+      if (!stop_order.containsKey(stop_tags[i])) {
+        stop_order.put(stop_tags[i], stop_order.size());
       }
+    }
 
-      MatrixCursor.RowBuilder row = result.newRow();
-      row.add(id++);
-      row.add(prediction.route_tag);
-      row.add(prediction.direction_tag);
-      row.add(direction_name);
-      row.add(stop_id);
-      row.add(prediction.predicted_time);
+    // The time-ordered runs for each stop, by request order. Stops NextBus
+    // answered for that we didn't ask about go last.
+    final List<List<List<Db.Prediction>>> runs_by_stop =
+        new ArrayList<List<List<Db.Prediction>>>(stop_order.size() + 1);
+    for (int i = 0; i <= stop_order.size(); i++) {
+      runs_by_stop.add(new ArrayList<List<Db.Prediction>>());
     }
-    return result;
+    final HashMap<String, String> direction_tag2title =
+        new HashMap<String, String>();
+    for (int start = 0; start < count; start += MAX_STOPS_PER_MULTI_REQUEST) {
+      final int end = Math.min(count, start + MAX_STOPS_PER_MULTI_REQUEST);
+      Uri request_uri =
+          NextMuniUriBuilder.buildMultiPredictionUri(agency_tag, route_tags,
+              stop_tags, start, end);
+      PredictionsParser parser =
+          getAndParse(request_uri.toString(), PredictionsParser.FACTORY);
+      if (parser == null) {
+        return null;
+      }
+      for (List<Db.Prediction> run : parser.getRuns()) {
+        if (run.isEmpty()) {
+          continue;
+        }
+        final Integer order = stop_order.get(run.get(0).stop_tag);
+        runs_by_stop.get(order == null ? stop_order.size() : order).add(run);
+      }
+      direction_tag2title.putAll(parser.getDirectionTag2Title());
+    }
+
+    final List<Db.Prediction> predictions = new ArrayList<Db.Prediction>();
+    for (List<List<Db.Prediction>> runs : runs_by_stop) {
+      predictions.addAll(PredictionsParser.merge(runs, limit));
+    }
+    final PredictionCursor.Columns columns =
+        new PredictionCursor.Columns(predictions, direction_tag2title);
+    return new PredictionCursor(columns, 0, columns.size(), "stop_tag", null);
+  }
+
+  /**
+   * Changes how far, in meters, simplifying a route's paths may move them
+   * before they're stored. Takes effect at the next route refresh.
+   */
+  public void setPathTolerance(double tolerance_m) {
+    m_path_tolerance_m = tolerance_m;
+  }
+
+  /**
+   * Changes how long a stop's predictions are reused before we ask NextBus
+   * again, including predictions already cached. With 0, predictions are
+   * only reused within the millisecond they were fetched in.
+   */
+  public void setPredictionCacheTtl(long ttl_ms) {
+    m_prediction_cache.setTtl(ttl_ms);
+  }
+
+  /**
+   * Sets how long circuit breakers created from now on stay open after their
+   * first trip, so tests don't have to wait out the default.
+   */
+  public void setCircuitBreakerOpenMs(long open_ms) {
+    m_circuit_breaker_open_ms = open_ms;
+  }
+
+  /**
+   * Forgets the in-memory copies of routes' directions and stops. Only needed
+   * by code, like tests, that changes the database behind the provider's back.
+   */
+  public void invalidateRouteGraphs() {
+    m_route_graphs.invalidateAll();
+  }
+
+  /**
+   * @return The number of getAndParse() calls that shared another thread's
+   *         in-flight request instead of sending their own.
+   */
+  public long getCoalescedRequestCount() {
+    return m_in_flight.getCoalescedCount();
+  }
+
+  /**
+   * @return The total number of getAndParse() calls.
+   */
+  public long getRequestCount() {
+    return m_in_flight.getCallCount();
+  }
+
+  /**
+   * @return How many times route refreshes took the write lock, how many
+   *         nanoseconds they held it in total, and the longest hold, in
+   *         nanoseconds.
+   */
+  public long[] getRouteLockStats() {
+    return new long[] { m_route_lock_holds.get(), m_route_lock_ns.get(),
+                       m_route_lock_max_ns.get() };
+  }
+
+  /**
+   * @return How many routeConfig fetches route refreshes made, and how many
+   *         nanoseconds they spent fetching and parsing in total. Before
+   *         refreshes fetched outside the transaction, all of this was also
+   *         time spent holding the write lock.
+   */
+  public long[] getRouteFetchStats() {
+    return new long[] { m_route_fetches.get(), m_route_fetch_ns.get() };
+  }
+
+  /**
+   * @return How many route refreshes were thrown away because the route was
+   *         updated while they were fetching.
+   */
+  public long getRouteRefreshesDroppedCount() {
+    return m_route_refreshes_dropped.get();
+  }
+
+  /**
+   * @return The number of routeConfig responses that were parsed and synced
+   *         into the database.
+   */
+  public long getRouteConfigsStoredCount() {
+    return m_route_configs_stored.get();
+  }
+
+  /**
+   * @return The number of routeConfig responses that matched the stored
+   *         route's digest, so only its update time was written.
+   */
+  public long getRouteConfigsUnchangedCount() {
+    return m_route_configs_unchanged.get();
   }
 
   @Override
@@ -7,34 +7,56 @@ import android.net.Uri;
  *      the format.
  */
 class NextMuniUriBuilder {
-  private static final Uri s_route_list_base =
-      Uri.parse("http://webservices.nextbus.com/service/publicXMLFeed?command=routeList");
-  private static final Uri s_route_details_base =
-      Uri.parse("http://webservices.nextbus.com/service/publicXMLFeed?command=routeConfig");
-  private static final Uri s_predictions_base =
-      Uri.parse("http://webservices.nextbus.com/service/publicXMLFeed?command=predictions");
-  private static final Uri s_multi_predictions_base =
-      Uri.parse("http://webservices.nextbus.com/service/publicXMLFeed?command=predictionsForMultiStops");
+  static final Uri DEFAULT_FEED_URI =
+      Uri.parse("http://webservices.nextbus.com/service/publicXMLFeed");
+
+  /**
+   * The URI all commands are sent to. Tests point this at a local stand-in
+   * for NextBus.
+   */
+  private static volatile Uri s_feed_uri = DEFAULT_FEED_URI;
+
+  /**
+   * Sends all future requests to 'feed_uri' instead of NextBus, or back to
+   * NextBus if 'feed_uri' is null.
+   */
+  static void setFeedUri(Uri feed_uri) {
+    s_feed_uri = feed_uri == null ? DEFAULT_FEED_URI : feed_uri;
+  }
+
+  private static Uri.Builder commandBuilder(String command) {
+    Uri.Builder builder = s_feed_uri.buildUpon();
+    builder.appendQueryParameter("command", command);
+    return builder;
+  }
 
   static Uri buildRouteListUri(String agency) {
-    Uri.Builder builder = s_route_list_base.buildUpon();
+    Uri.Builder builder = commandBuilder("routeList");
     builder.appendQueryParameter("a", agency);
     return builder.build();
   }
 
   static Uri buildRouteDetailsUri(String agency, String route_tag) {
-    Uri.Builder builder = s_route_details_base.buildUpon();
+    Uri.Builder builder = commandBuilder("routeConfig");
     builder.appendQueryParameter("a", agency);
     builder.appendQueryParameter("r", route_tag);
     return builder.build();
   }
 
-  static Uri buildMultiPredictionUri(String agency, String stop_tag,
-      String... route_tags) {
-    Uri.Builder builder = s_multi_predictions_base.buildUpon();
+  /**
+   * Builds a predictionsForMultiStops request for the (route, stop) pairs
+   * route_tags[i], stop_tags[i] for i in [start, end).
+   * 
+   * @param stop_tags
+   *          Stop tags, not ids, which is what predictionsForMultiStops wants.
+   */
+  static Uri buildMultiPredictionUri(String agency, String[] route_tags,
+      String[] stop_tags, int start, int end) {
+    Uri.Builder builder = commandBuilder("predictionsForMultiStops");
     builder.appendQueryParameter("a", agency);
-    for (String route_tag : route_tags) {
-      builder.appendQueryParameter("stops", route_tag + "||" + stop_tag);
+    for (int i = start; i < end; i++) {
+      builder.appendQueryParameter("stops", route_tags[i] + "||"
+                                            + stop_tags[i]);
     }
     return builder.build();
   }
@@ -46,7 +68,7 @@ class NextMuniUriBuilder {
    *          The id (not the tag) of the stop we're getting predictions for.
    */
   static Uri buildPredictionUri(String agency, String stop_id) {
-    Uri.Builder builder = s_predictions_base.buildUpon();
+    Uri.Builder builder = commandBuilder("predictions");
     builder.appendQueryParameter("a", agency);
     builder.appendQueryParameter("stopId", stop_id);
     return builder.build();
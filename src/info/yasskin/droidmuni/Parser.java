@@ -10,10 +10,34 @@ import android.util.Log;
 import android.util.Xml;
 
 abstract class Parser {
+  /**
+   * Makes a fresh parser for each request.
+   */
+  interface Factory<ParserT extends Parser> {
+    ParserT newParser();
+  }
+
+  /**
+   * Creating an XmlPullParser is a noticeable part of handling a small
+   * predictions response, so each thread keeps one and reuses it for every
+   * document it parses.
+   */
+  private static final ThreadLocal<XmlPullParser> s_pull_parsers =
+      new ThreadLocal<XmlPullParser>() {
+        @Override
+        protected XmlPullParser initialValue() {
+          return Xml.newPullParser();
+        }
+      };
+
+  /**
+   * Parses 'input', replacing anything this parser read from an earlier
+   * document. The validators from setValidators() are kept, since they
+   * describe the response 'input' comes from.
+   */
   public void parse(InputStream input) {
-    if (this.result_state != ResultState.NOT_DONE) {
-      return;
-    }
+    startDocument();
+    this.parser = s_pull_parsers.get();
     try {
       this.parser.setInput(input, null);
       parser.nextTag(); // Move to the first element.
@@ -32,9 +56,37 @@ abstract class Parser {
     } catch (IOException e) {
       Log.d("DroidMuni", "IO error", e);
       result_state = ResultState.IO_ERROR;
+    } finally {
+      this.parser = null;
     }
   }
 
+  /**
+   * Forgets the last document before parsing a new one.
+   */
+  protected void startDocument() {
+    this.result_state = ResultState.NOT_DONE;
+    this.copyright = null;
+    resetDocument();
+  }
+
+  /**
+   * Returns this parser to the state it was constructed in, so it can be used
+   * for another request.
+   */
+  public void reset() {
+    this.result_state = ResultState.NOT_DONE;
+    this.copyright = null;
+    this.etag = null;
+    this.last_modified = null;
+    resetDocument();
+  }
+
+  /**
+   * Forgets everything parseBody() stored.
+   */
+  protected abstract void resetDocument();
+
   private static String dumpState(XmlPullParser parser) {
     String name = parser.getName();
     String text = parser.getText();
@@ -50,6 +102,16 @@ abstract class Parser {
 
   public enum ResultState {
     NOT_DONE, IO_ERROR, PARSE_ERROR, RETRY, SUCCESS,
+    /**
+     * The server answered a conditional request with 304 Not Modified, so
+     * there was nothing to parse.
+     */
+    NOT_MODIFIED,
+    /**
+     * The response was byte-for-byte the one the caller last stored, so
+     * there's nothing new to store.
+     */
+    UNCHANGED,
   }
 
   public ResultState getResult() {
@@ -60,9 +122,50 @@ abstract class Parser {
     return copyright;
   }
 
-  protected final XmlPullParser parser = Xml.newPullParser();
+  /**
+   * Records that the document this parser would have parsed hasn't changed
+   * since the version the caller already has.
+   */
+  void markNotModified() {
+    if (this.result_state == ResultState.NOT_DONE) {
+      this.result_state = ResultState.NOT_MODIFIED;
+    }
+  }
+
+  /**
+   * Records that the request for this parser's document failed before or
+   * instead of parsing, with a failure state like IO_ERROR or RETRY.
+   */
+  void markFailed(ResultState state) {
+    this.result_state = state;
+  }
+
+  /**
+   * @return The ETag header of the response this parser read, or null.
+   */
+  public String getETag() {
+    return etag;
+  }
+
+  /**
+   * @return The Last-Modified header of the response this parser read, or
+   *         null.
+   */
+  public String getLastModified() {
+    return last_modified;
+  }
+
+  void setValidators(String etag, String last_modified) {
+    this.etag = etag;
+    this.last_modified = last_modified;
+  }
+
+  /** This thread's pull parser while parse() runs, and null otherwise. */
+  protected XmlPullParser parser;
   protected ResultState result_state = ResultState.NOT_DONE;
   protected String copyright;
+  private String etag;
+  private String last_modified;
 
   protected static String renderTag(XmlPullParser tag) {
     StringBuilder b = new StringBuilder();
@@ -0,0 +1,203 @@
+package info.yasskin.droidmuni;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * An immutable sequence of points, stored as latitudes and longitudes in
+ * microdegrees (degrees * 1E6) like com.google.android.maps.GeoPoint.
+ *
+ * Polylines serialize to a compact blob: the point count, then each point as
+ * the zigzag varint-encoded difference from the previous point. Neighboring
+ * points on a bus route are close together, so most points take 2-4 bytes.
+ */
+public final class Polyline {
+  /** Meters per microdegree of latitude. */
+  private static final double METERS_PER_MICRODEGREE = 0.111195;
+
+  private final int[] m_lat_e6;
+  private final int[] m_lon_e6;
+
+  /**
+   * Copies the first 'count' points out of 'lat_e6' and 'lon_e6'.
+   */
+  public Polyline(int[] lat_e6, int[] lon_e6, int count) {
+    if (count > lat_e6.length || count > lon_e6.length) {
+      throw new IllegalArgumentException("Only " + lat_e6.length + " and "
+                                         + lon_e6.length + " points, not "
+                                         + count);
+    }
+    m_lat_e6 = new int[count];
+    m_lon_e6 = new int[count];
+    System.arraycopy(lat_e6, 0, m_lat_e6, 0, count);
+    System.arraycopy(lon_e6, 0, m_lon_e6, 0, count);
+  }
+
+  public int size() {
+    return m_lat_e6.length;
+  }
+
+  public int getLatitudeE6(int i) {
+    return m_lat_e6[i];
+  }
+
+  public int getLongitudeE6(int i) {
+    return m_lon_e6[i];
+  }
+
+  /**
+   * Drops points with the Douglas-Peucker algorithm until removing any more
+   * would move the line by more than 'tolerance_m' meters. The endpoints are
+   * always kept.
+   */
+  public Polyline simplify(double tolerance_m) {
+    final int size = size();
+    if (size <= 2 || tolerance_m <= 0) {
+      return this;
+    }
+    // Work in a local projection where a unit is a microdegree of latitude
+    // in both directions. That's accurate enough over the span of a city.
+    final double lon_scale =
+        Math.cos(Math.toRadians((m_lat_e6[0] + m_lat_e6[size - 1]) / 2e6));
+    final double tolerance = tolerance_m / METERS_PER_MICRODEGREE;
+    final double tolerance_squared = tolerance * tolerance;
+
+    final boolean[] keep = new boolean[size];
+    keep[0] = true;
+    keep[size - 1] = true;
+    // Pairs of (first, last) indices of the spans still to simplify.
+    int[] stack = new int[64];
+    int stack_size = 0;
+    stack[stack_size++] = 0;
+    stack[stack_size++] = size - 1;
+    while (stack_size > 0) {
+      final int last = stack[--stack_size];
+      final int first = stack[--stack_size];
+      final double x0 = m_lon_e6[first] * lon_scale;
+      final double y0 = m_lat_e6[first];
+      final double dx = m_lon_e6[last] * lon_scale - x0;
+      final double dy = m_lat_e6[last] - y0;
+      final double length_squared = dx * dx + dy * dy;
+
+      double max_distance_squared = tolerance_squared;
+      int farthest = -1;
+      for (int i = first + 1; i < last; i++) {
+        final double px = m_lon_e6[i] * lon_scale - x0;
+        final double py = m_lat_e6[i] - y0;
+        // Distance to the segment, not the line through it, so a path that
+        // doubles back past an endpoint keeps its far points.
+        final double dot = px * dx + py * dy;
+        final double distance_squared;
+        if (length_squared == 0 || dot <= 0) {
+          distance_squared = px * px + py * py;
+        } else if (dot >= length_squared) {
+          final double qx = px - dx;
+          final double qy = py - dy;
+          distance_squared = qx * qx + qy * qy;
+        } else {
+          final double cross = px * dy - py * dx;
+          distance_squared = cross * cross / length_squared;
+        }
+        if (distance_squared > max_distance_squared) {
+          max_distance_squared = distance_squared;
+          farthest = i;
+        }
+      }
+      if (farthest != -1) {
+        keep[farthest] = true;
+        if (stack_size + 4 > stack.length) {
+          final int[] bigger = new int[stack.length * 2];
+          System.arraycopy(stack, 0, bigger, 0, stack_size);
+          stack = bigger;
+        }
+        stack[stack_size++] = first;
+        stack[stack_size++] = farthest;
+        stack[stack_size++] = farthest;
+        stack[stack_size++] = last;
+      }
+    }
+
+    final int[] lat_e6 = new int[size];
+    final int[] lon_e6 = new int[size];
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      if (keep[i]) {
+        lat_e6[kept] = m_lat_e6[i];
+        lon_e6[kept] = m_lon_e6[i];
+        kept++;
+      }
+    }
+    return kept == size ? this : new Polyline(lat_e6, lon_e6, kept);
+  }
+
+  /**
+   * @return This polyline in the compact form that decode() reads.
+   */
+  public byte[] encode() {
+    final ByteArrayOutputStream result =
+        new ByteArrayOutputStream(2 + size() * 4);
+    writeVarint(result, size());
+    int lat = 0;
+    int lon = 0;
+    for (int i = 0; i < size(); i++) {
+      writeVarint(result, zigzag(m_lat_e6[i] - lat));
+      writeVarint(result, zigzag(m_lon_e6[i] - lon));
+      lat = m_lat_e6[i];
+      lon = m_lon_e6[i];
+    }
+    return result.toByteArray();
+  }
+
+  /**
+   * @throws IllegalArgumentException
+   *           if 'encoded' didn't come from encode().
+   */
+  public static Polyline decode(byte[] encoded) {
+    final int[] position = { 0 };
+    final int size = readVarint(encoded, position);
+    final int[] lat_e6 = new int[size];
+    final int[] lon_e6 = new int[size];
+    int lat = 0;
+    int lon = 0;
+    for (int i = 0; i < size; i++) {
+      lat += unzigzag(readVarint(encoded, position));
+      lon += unzigzag(readVarint(encoded, position));
+      lat_e6[i] = lat;
+      lon_e6[i] = lon;
+    }
+    if (position[0] != encoded.length) {
+      throw new IllegalArgumentException("Trailing bytes in polyline");
+    }
+    return new Polyline(lat_e6, lon_e6, size);
+  }
+
+  private static int zigzag(int n) {
+    return (n << 1) ^ (n >> 31);
+  }
+
+  private static int unzigzag(int n) {
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int n) {
+    while ((n & ~0x7f) != 0) {
+      out.write((n & 0x7f) | 0x80);
+      n >>>= 7;
+    }
+    out.write(n);
+  }
+
+  private static int readVarint(byte[] in, int[] position) {
+    int result = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      if (position[0] >= in.length) {
+        throw new IllegalArgumentException("Truncated polyline");
+      }
+      final byte b = in[position[0]++];
+      result |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint in polyline");
+  }
+}
@@ -0,0 +1,91 @@
+package info.yasskin.droidmuni;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers recently-fetched predictions for each stop so that a second query
+ * for the same stop within a short time, from another pane or after a
+ * configuration change, doesn't have to go back to NextBus.
+ *
+ * Holds at most a fixed number of stops, evicting the least recently used one
+ * when full. Thread-safe.
+ */
+final class PredictionCache {
+  static final long DEFAULT_TTL_MS = 30 * 1000;
+  static final int DEFAULT_MAX_STOPS = 32;
+
+  /**
+   * One stop's predictions, as of a particular fetch.
+   */
+  static final class Entry {
+    Entry(PredictionCursor.Columns columns, long fetched_ms) {
+      this.columns = columns;
+      this.fetched_ms = fetched_ms;
+    }
+
+    /**
+     * Sorted by predicted time.
+     */
+    final PredictionCursor.Columns columns;
+    /**
+     * The System.currentTimeMillis() when these predictions were fetched.
+     */
+    final long fetched_ms;
+  }
+
+  private final int m_max_stops;
+  // Guarded by this.
+  private long m_ttl_ms;
+  // Guarded by this. Iterates from least to most recently used.
+  private final LinkedHashMap<String, Entry> m_entries;
+
+  PredictionCache(long ttl_ms, final int max_stops) {
+    m_ttl_ms = ttl_ms;
+    m_max_stops = max_stops;
+    m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > m_max_stops;
+      }
+    };
+  }
+
+  /**
+   * @return The entry for the stop if it was fetched within the TTL of
+   *         'now_ms', or null.
+   */
+  synchronized Entry get(String agency_tag, String stop_id, long now_ms) {
+    final String key = key(agency_tag, stop_id);
+    final Entry entry = m_entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.fetched_ms + m_ttl_ms < now_ms) {
+      m_entries.remove(key);
+      return null;
+    }
+    return entry;
+  }
+
+  synchronized void put(String agency_tag, String stop_id, Entry entry) {
+    m_entries.put(key(agency_tag, stop_id), entry);
+  }
+
+  /**
+   * Changes how long entries stay fresh. Applies to existing entries too.
+   */
+  synchronized void setTtl(long ttl_ms) {
+    m_ttl_ms = ttl_ms;
+  }
+
+  synchronized void clear() {
+    m_entries.clear();
+  }
+
+  private static String key(String agency_tag, String stop_id) {
+    return agency_tag + "/" + stop_id;
+  }
+}
@@ -0,0 +1,243 @@
+package info.yasskin.droidmuni;
+
+import java.util.List;
+import java.util.Map;
+
+import android.database.AbstractCursor;
+import android.database.CursorWindow;
+
+/**
+ * A read-only Cursor over a range of time-ordered predictions stored in
+ * parallel arrays. Unlike a MatrixCursor, it doesn't box each time or copy
+ * each row, and many cursors can share one set of Columns, so a cached stop's
+ * predictions are turned into rows once rather than on every query.
+ *
+ * The columns are _id, route_tag, direction_tag, direction_title, a stop
+ * column, and predicted_time.
+ */
+public final class PredictionCursor extends AbstractCursor {
+  private static final int ID = 0;
+  private static final int ROUTE_TAG = 1;
+  private static final int DIRECTION_TAG = 2;
+  private static final int DIRECTION_TITLE = 3;
+  private static final int STOP = 4;
+  private static final int PREDICTED_TIME = 5;
+
+  /**
+   * Immutable predictions in time order, with each direction's title looked
+   * up ahead of time.
+   */
+  public static final class Columns {
+    Columns(List<Db.Prediction> predictions,
+        Map<String, String> direction_tag2title) {
+      final int size = predictions.size();
+      times = new long[size];
+      route_tags = new String[size];
+      direction_tags = new String[size];
+      direction_titles = new String[size];
+      stop_tags = new String[size];
+      for (int i = 0; i < size; i++) {
+        final Db.Prediction prediction = predictions.get(i);
+        times[i] = prediction.predicted_time;
+        route_tags[i] = prediction.route_tag;
+        direction_tags[i] = prediction.direction_tag;
+        final String title = direction_tag2title.get(prediction.direction_tag);
+        direction_titles[i] = title == null ? prediction.direction_tag : title;
+        stop_tags[i] = prediction.stop_tag;
+      }
+    }
+
+    /**
+     * Takes ownership of the parallel arrays, which must all be the same
+     * length, with 'times' in ascending order.
+     */
+    public Columns(long[] times, String[] route_tags, String[] direction_tags,
+        String[] direction_titles, String[] stop_tags) {
+      final int size = times.length;
+      if (route_tags.length != size || direction_tags.length != size
+          || direction_titles.length != size || stop_tags.length != size) {
+        throw new IllegalArgumentException("Columns of different lengths");
+      }
+      this.times = times;
+      this.route_tags = route_tags;
+      this.direction_tags = direction_tags;
+      this.direction_titles = direction_titles;
+      this.stop_tags = stop_tags;
+    }
+
+    public int size() {
+      return times.length;
+    }
+
+    /**
+     * @return The index of the first prediction at or after 'time_ms', or
+     *         size() if there is none.
+     */
+    public int firstAtOrAfter(long time_ms) {
+      int low = 0;
+      int high = times.length;
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+        if (times[middle] < time_ms) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+
+    private final long[] times;
+    private final String[] route_tags;
+    private final String[] direction_tags;
+    private final String[] direction_titles;
+    private final String[] stop_tags;
+  }
+
+  private final String[] m_column_names;
+  private final Columns m_columns;
+  private final int m_from;
+  private final int m_count;
+  /** The value of the stop column in every row, or null to use stop tags. */
+  private final String m_stop;
+
+  /**
+   * A cursor over m_columns[from, to).
+   *
+   * @param stop_column
+   *          The name of the stop column, like "stop_id" or "stop_tag".
+   * @param stop
+   *          The value of the stop column in every row, or null to use each
+   *          prediction's stop tag.
+   */
+  public PredictionCursor(Columns columns, int from, int to,
+      String stop_column, String stop) {
+    if (from < 0 || to > columns.size() || from > to) {
+      throw new IllegalArgumentException("Bad range [" + from + ", " + to
+                                         + ") of " + columns.size());
+    }
+    m_column_names =
+        new String[] { "_id", "route_tag", "direction_tag", "direction_title",
+                      stop_column, "predicted_time" };
+    m_columns = columns;
+    m_from = from;
+    m_count = to - from;
+    m_stop = stop;
+  }
+
+  @Override
+  public String[] getColumnNames() {
+    return m_column_names;
+  }
+
+  @Override
+  public int getCount() {
+    return m_count;
+  }
+
+  @Override
+  public String getString(int column) {
+    final int row = m_from + mPos;
+    switch (column) {
+    case ID:
+      return Integer.toString(mPos);
+    case ROUTE_TAG:
+      return m_columns.route_tags[row];
+    case DIRECTION_TAG:
+      return m_columns.direction_tags[row];
+    case DIRECTION_TITLE:
+      return m_columns.direction_titles[row];
+    case STOP:
+      return m_stop != null ? m_stop : m_columns.stop_tags[row];
+    case PREDICTED_TIME:
+      return Long.toString(m_columns.times[row]);
+    default:
+      throw new IllegalArgumentException("No column " + column);
+    }
+  }
+
+  @Override
+  public long getLong(int column) {
+    switch (column) {
+    case ID:
+      return mPos;
+    case PREDICTED_TIME:
+      return m_columns.times[m_from + mPos];
+    default:
+      return Long.parseLong(getString(column));
+    }
+  }
+
+  @Override
+  public int getInt(int column) {
+    return (int) getLong(column);
+  }
+
+  @Override
+  public short getShort(int column) {
+    return (short) getLong(column);
+  }
+
+  @Override
+  public float getFloat(int column) {
+    return getLong(column);
+  }
+
+  @Override
+  public double getDouble(int column) {
+    return getLong(column);
+  }
+
+  @Override
+  public boolean isNull(int column) {
+    return getString(column) == null;
+  }
+
+  /**
+   * Copies rows straight from the arrays into 'window', with numbers as
+   * numbers, instead of AbstractCursor's getString() of every field.
+   */
+  @Override
+  public void fillWindow(int position, CursorWindow window) {
+    if (position < 0 || position > m_count) {
+      return;
+    }
+    window.acquireReference();
+    try {
+      window.clear();
+      window.setStartPosition(position);
+      window.setNumColumns(m_column_names.length);
+      for (int row = position; row < m_count; row++) {
+        if (!window.allocRow()) {
+          break;
+        }
+        if (!putRow(window, row)) {
+          // The window is full.
+          window.freeLastRow();
+          break;
+        }
+      }
+    } finally {
+      window.releaseReference();
+    }
+  }
+
+  private boolean putRow(CursorWindow window, int row) {
+    final int i = m_from + row;
+    return window.putLong(row, row, ID)
+           && putString(window, m_columns.route_tags[i], row, ROUTE_TAG)
+           && putString(window, m_columns.direction_tags[i], row,
+               DIRECTION_TAG)
+           && putString(window, m_columns.direction_titles[i], row,
+               DIRECTION_TITLE)
+           && putString(window, m_stop != null ? m_stop
+               : m_columns.stop_tags[i], row, STOP)
+           && window.putLong(m_columns.times[i], row, PREDICTED_TIME);
+  }
+
+  private static boolean putString(CursorWindow window, String value,
+      int row, int column) {
+    return value == null ? window.putNull(row, column) : window.putString(
+        value, row, column);
+  }
+}
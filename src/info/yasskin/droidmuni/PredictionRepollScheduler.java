@@ -0,0 +1,141 @@
+package info.yasskin.droidmuni;
+
+import android.database.Cursor;
+import android.os.Handler;
+
+/**
+ * Schedules re-polls of the predictions being shown, asking a RepollPolicy how
+ * long to wait based on the soonest arrival in the last result.
+ *
+ * Must be used from the thread that owns the Handler.
+ */
+public class PredictionRepollScheduler {
+  private final Handler m_handler;
+  private final Runnable m_poll;
+  private final RepollPolicy m_policy;
+
+  /**
+   * Whether there are predictions on screen that should be kept fresh.
+   */
+  private boolean m_active = false;
+  /**
+   * Whether the screen is hidden, in which case we don't poll even if active.
+   */
+  private boolean m_paused = false;
+  /**
+   * The soonest arrival from the last result, or RepollPolicy.NO_ARRIVAL.
+   */
+  private long m_soonest_arrival = RepollPolicy.NO_ARRIVAL;
+
+  /**
+   * System.currentTimeMillis() at which the next poll is scheduled, or -1 if
+   * none is.
+   *
+   * Protected so the test's subclass can read this.
+   */
+  protected long m_next_poll_time = -1;
+
+  private final Runnable m_scheduled_poll = new Runnable() {
+    public void run() {
+      m_next_poll_time = -1;
+      m_poll.run();
+      // If the poll fails, we won't hear about a new result, so make sure we
+      // try again eventually.
+      schedule();
+    }
+  };
+
+  /**
+   * @param poll
+   *          Run on the handler's thread to requery the predictions. Its result
+   *          should be passed to onPredictions().
+   */
+  public PredictionRepollScheduler(Handler handler, Runnable poll,
+      RepollPolicy policy) {
+    m_handler = handler;
+    m_poll = poll;
+    m_policy = policy;
+  }
+
+  /**
+   * Call with each newly-displayed predictions cursor. Reads the
+   * "predicted_time" column and reschedules the next poll.
+   */
+  public void onPredictions(Cursor predictions) {
+    m_soonest_arrival = findSoonestArrival(predictions, now());
+    m_active = true;
+    schedule();
+  }
+
+  /**
+   * Stops polling, for example because the user selected a different stop.
+   */
+  public void stop() {
+    m_active = false;
+    m_soonest_arrival = RepollPolicy.NO_ARRIVAL;
+    cancel();
+  }
+
+  /**
+   * Call when the predictions stop being visible.
+   */
+  public void pause() {
+    m_paused = true;
+    cancel();
+  }
+
+  /**
+   * Call when the predictions become visible again. If we were polling, polls
+   * immediately since the data may be arbitrarily stale.
+   */
+  public void resume() {
+    m_paused = false;
+    if (m_active) {
+      cancel();
+      m_next_poll_time = now();
+      m_handler.post(m_scheduled_poll);
+    }
+  }
+
+  /**
+   * @return System.currentTimeMillis(). Overridden by tests.
+   */
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  private void schedule() {
+    cancel();
+    if (!m_active || m_paused) {
+      return;
+    }
+    final long now = now();
+    final long delay = m_policy.nextPollDelayMs(now, m_soonest_arrival);
+    m_next_poll_time = now + delay;
+    m_handler.postDelayed(m_scheduled_poll, delay);
+  }
+
+  private void cancel() {
+    m_handler.removeCallbacks(m_scheduled_poll);
+    m_next_poll_time = -1;
+  }
+
+  /**
+   * @return The earliest predicted_time in 'predictions' that's not before
+   *         'now', or RepollPolicy.NO_ARRIVAL.
+   */
+  static long findSoonestArrival(Cursor predictions, long now) {
+    final int time_index = predictions.getColumnIndex("predicted_time");
+    if (time_index == -1) {
+      return RepollPolicy.NO_ARRIVAL;
+    }
+    long soonest = RepollPolicy.NO_ARRIVAL;
+    for (predictions.moveToFirst(); !predictions.isAfterLast(); predictions.moveToNext()) {
+      final long time = predictions.getLong(time_index);
+      if (time >= now && time < soonest) {
+        soonest = time;
+      }
+    }
+    return soonest;
+  }
+}
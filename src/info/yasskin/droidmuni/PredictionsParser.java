@@ -1,32 +1,213 @@
 package info.yasskin.droidmuni;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import android.util.Log;
+
 /**
  * Parses an XML feed like
  * http://www.nextmuni.com/s/COM.NextBus.Servlets.XMLFeed
  * ?command=predictionsForMultiStops&a=sf-muni&stops=38||6648&stops=6||6648
  */
 public class PredictionsParser extends Parser {
+  static final Factory<PredictionsParser> FACTORY =
+      new Factory<PredictionsParser>() {
+        public PredictionsParser newParser() {
+          return new PredictionsParser();
+        }
+      };
+
+  private static volatile boolean s_scanner_enabled = true;
+
+  /**
+   * Chooses whether parse() tries PredictionsScanner before falling back to
+   * the XmlPullParser. For benchmarks and tests.
+   */
+  public static void setScannerEnabled(boolean enabled) {
+    s_scanner_enabled = enabled;
+  }
+
+  /**
+   * Predictions responses are small and fetched constantly, so this reads the
+   * whole response and scans its bytes directly, which avoids the pull
+   * parser's per-attribute Strings. Anything the scanner doesn't expect,
+   * including <Error> documents, goes through the pull parser instead.
+   */
+  @Override
+  public void parse(InputStream input) {
+    if (!s_scanner_enabled) {
+      super.parse(input);
+      return;
+    }
+    final byte[] body;
+    try {
+      body = FeedArchive.readFully(input);
+    } catch (IOException e) {
+      Log.d("DroidMuni", "IO error", e);
+      startDocument();
+      result_state = ResultState.IO_ERROR;
+      return;
+    }
+    startDocument();
+    if (PredictionsScanner.scan(body, this)) {
+      return;
+    }
+    super.parse(new ByteArrayInputStream(body));
+  }
+
+  /**
+   * @return Every prediction in the document, in time order.
+   */
   public List<Db.Prediction> getPredictions() {
     return predictions;
   }
 
+  /**
+   * @return The predictions in document order, split into runs that are each
+   *         in time order. NextBus sorts each <direction> block, so there's
+   *         usually one run per direction. Every run is for a single stop.
+   */
+  public List<List<Db.Prediction>> getRuns() {
+    final List<List<Db.Prediction>> runs =
+        new ArrayList<List<Db.Prediction>>(run_count);
+    for (int i = 0; i < run_count; i++) {
+      final int end = i + 1 < run_count ? run_starts[i + 1] : parsed.size();
+      runs.add(parsed.subList(run_starts[i], end));
+    }
+    return runs;
+  }
+
   public HashMap<String, String> getDirectionTag2Title() {
     return direction_tag2title;
   }
 
-  private final List<Db.Prediction> predictions =
+  /**
+   * @return getPredictions() as the columns of a PredictionCursor.
+   */
+  synchronized PredictionCursor.Columns getColumns() {
+    if (columns == null) {
+      columns = new PredictionCursor.Columns(predictions, direction_tag2title);
+    }
+    return columns;
+  }
+
+  /**
+   * Merges time-ordered 'runs' into one time-ordered list, stopping after
+   * 'limit' predictions. This is O(n log runs) instead of sorting's
+   * O(n log n), and O(limit log runs) when only the first few are wanted.
+   */
+  public static List<Db.Prediction> merge(List<List<Db.Prediction>> runs,
+      int limit) {
+    int total = 0;
+    for (List<Db.Prediction> run : runs) {
+      total += run.size();
+    }
+    final ArrayList<Db.Prediction> result =
+        new ArrayList<Db.Prediction>(Math.min(total, limit));
+    if (runs.size() == 1) {
+      final List<Db.Prediction> run = runs.get(0);
+      result.addAll(run.size() > limit ? run.subList(0, limit) : run);
+      return result;
+    }
+    final PriorityQueue<RunHead> heads =
+        new PriorityQueue<RunHead>(Math.max(1, runs.size()));
+    for (List<Db.Prediction> run : runs) {
+      if (!run.isEmpty()) {
+        heads.add(new RunHead(run));
+      }
+    }
+    while (result.size() < limit && !heads.isEmpty()) {
+      final RunHead head = heads.poll();
+      result.add(head.current);
+      if (head.advance()) {
+        heads.add(head);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The next prediction to take from one run, during merge().
+   */
+  private static final class RunHead implements Comparable<RunHead> {
+    RunHead(List<Db.Prediction> run) {
+      this.run = run;
+      this.current = run.get(0);
+    }
+
+    /**
+     * Moves to the run's next prediction.
+     * 
+     * @return false if the run is used up.
+     */
+    boolean advance() {
+      if (++next_index >= run.size()) {
+        return false;
+      }
+      current = run.get(next_index);
+      return true;
+    }
+
+    public int compareTo(RunHead another) {
+      return current.compareTo(another.current);
+    }
+
+    private final List<Db.Prediction> run;
+    private int next_index = 0;
+    Db.Prediction current;
+  }
+
+  /** Every prediction, in document order. */
+  private final ArrayList<Db.Prediction> parsed =
       new ArrayList<Db.Prediction>();
+  /** The index in 'parsed' where each time-ordered run starts. */
+  private int[] run_starts = new int[8];
+  private int run_count = 0;
+  /** The last prediction added to the current run, or null. */
+  private Db.Prediction last_in_run = null;
+  private List<Db.Prediction> predictions = new ArrayList<Db.Prediction>();
+  /** Built from 'predictions' the first time someone asks. Guarded by this. */
+  private PredictionCursor.Columns columns = null;
   private final HashMap<String, String> direction_tag2title =
       new HashMap<String, String>();
 
+  @Override
+  protected void resetDocument() {
+    parsed.clear();
+    run_count = 0;
+    last_in_run = null;
+    predictions = new ArrayList<Db.Prediction>();
+    direction_tag2title.clear();
+    synchronized (this) {
+      columns = null;
+    }
+  }
+
+  /**
+   * Starts a new time-ordered run at the end of 'parsed'.
+   */
+  private void startRun() {
+    if (run_count > 0 && run_starts[run_count - 1] == parsed.size()) {
+      // The last run is still empty.
+      return;
+    }
+    if (run_count == run_starts.length) {
+      final int[] bigger = new int[run_starts.length * 2];
+      System.arraycopy(run_starts, 0, bigger, 0, run_count);
+      run_starts = bigger;
+    }
+    run_starts[run_count++] = parsed.size();
+  }
+
   @Override
   protected void parseBody() throws XmlPullParserException, IOException {
     parser.require(XmlPullParser.START_TAG, null, "body");
@@ -42,6 +223,43 @@ public class PredictionsParser extends Parser {
       }
     }
     parser.require(XmlPullParser.END_TAG, null, "body");
+    finishDocument();
+  }
+
+  /**
+   * Starts a <direction> block.
+   */
+  void startDirection() {
+    startRun();
+    last_in_run = null;
+  }
+
+  /**
+   * Adds one <prediction> from the current <direction> block.
+   */
+  void addPrediction(String route_tag, String stop_tag, long epoch_time,
+      boolean is_departure, String dir_tag, String block,
+      String direction_title) {
+    final Db.Prediction prediction =
+        new Db.Prediction(route_tag, stop_tag, epoch_time, is_departure,
+            dir_tag, block);
+    if (last_in_run != null && prediction.compareTo(last_in_run) < 0) {
+      // NextBus didn't sort this block after all.
+      startRun();
+    }
+    parsed.add(prediction);
+    last_in_run = prediction;
+    // Record the names of the direction tags too.
+    direction_tag2title.put(prediction.direction_tag, direction_title);
+  }
+
+  /**
+   * Called after the </body> tag. Merges every prediction, not just the first
+   * few a limited query wants: single-stop results go into the
+   * PredictionCache, which serves later queries with any limit.
+   */
+  void finishDocument() {
+    this.predictions = merge(getRuns(), Integer.MAX_VALUE);
     this.result_state = ResultState.SUCCESS;
   }
 
@@ -59,8 +277,9 @@ public class PredictionsParser extends Parser {
         parser.getAttributeValue(null, "dirTitleBecauseNoPredictions");
     if (no_predictions_title == null) {
       final String route_tag = parser.getAttributeValue(null, "routeTag");
+      final String stop_tag = parser.getAttributeValue(null, "stopTag");
       while (parser.nextTag() == XmlPullParser.START_TAG) {
-        if (parseDirection(route_tag)) {
+        if (parseDirection(route_tag, stop_tag)) {
         } else {
           skipToEndOfTag();
         }
@@ -77,24 +296,29 @@ public class PredictionsParser extends Parser {
    * 
    * @return true if we successfully parsed a <direction> tag.
    */
-  private boolean parseDirection(final String route_tag)
-      throws XmlPullParserException, IOException {
+  private boolean parseDirection(final String route_tag,
+      final String stop_tag) throws XmlPullParserException, IOException {
     if (XmlPullParser.START_TAG != parser.getEventType()
         || !"direction".equals(parser.getName())) {
       return false;
     }
     parser.require(XmlPullParser.START_TAG, null, "direction");
-    String direction_title = getAttr("title");
+    String direction_title = TagInterner.intern(getAttr("title"));
+    startDirection();
     while (parser.nextTag() != XmlPullParser.END_TAG) {
       parser.require(XmlPullParser.START_TAG, null, "prediction");
-      long epochTime = Long.parseLong(getAttr("epochTime"), 10);
+      final long epochTime;
+      try {
+        epochTime = Long.parseLong(getAttr("epochTime"), 10);
+      } catch (NumberFormatException e) {
+        // parse() reports this as a PARSE_ERROR, like any other bad document.
+        throw new XmlPullParserException("Bad epochTime", parser, e);
+      }
       boolean isDeparture = Boolean.parseBoolean(getAttr("isDeparture"));
       String dirTag = getAttr("dirTag");
       String block = getAttr("block");
-      predictions.add(new Db.Prediction(route_tag, epochTime, isDeparture,
-          dirTag, block));
-      // Record the names of the direction tags too.
-      direction_tag2title.put(dirTag, direction_title);
+      addPrediction(route_tag, stop_tag, epochTime, isDeparture, dirTag,
+          block, direction_title);
       parser.nextText();
     }
     parser.require(XmlPullParser.END_TAG, null, "direction");
@@ -0,0 +1,500 @@
+package info.yasskin.droidmuni;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads a predictions document straight out of its UTF-8 bytes and hands each
+ * prediction to a PredictionsParser. Tags are interned from the bytes, so a
+ * poll that repeats the last one's tags allocates no Strings for them, and
+ * epochTimes are read as numbers without becoming Strings at all.
+ *
+ * This only understands the subset of XML that NextBus actually sends.
+ * Anything else, like comments, CDATA, character references, other encodings
+ * or an <Error> document, makes scan() give up so the caller can use the
+ * XmlPullParser instead.
+ */
+final class PredictionsScanner {
+  /**
+   * Thrown to give up on the document. It's preallocated and has no stack
+   * trace, since giving up is an expected outcome.
+   */
+  private static final class Unexpected extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static final Unexpected UNEXPECTED = new Unexpected();
+
+  private static final byte[] XML = ascii("xml");
+  private static final byte[] BODY = ascii("body");
+  private static final byte[] PREDICTIONS = ascii("predictions");
+  private static final byte[] DIRECTION = ascii("direction");
+  private static final byte[] PREDICTION = ascii("prediction");
+  private static final byte[] TRUE = ascii("true");
+  private static final byte[] UTF_8 = ascii("utf-8");
+
+  private static final byte[][] NO_ATTRIBUTES = {};
+  private static final byte[][] XML_ATTRIBUTES = { ascii("encoding") };
+  private static final byte[][] BODY_ATTRIBUTES = { ascii("copyright") };
+  private static final byte[][] PREDICTIONS_ATTRIBUTES =
+      { ascii("routeTag"), ascii("stopTag"),
+       ascii("dirTitleBecauseNoPredictions") };
+  private static final byte[][] DIRECTION_ATTRIBUTES = { ascii("title") };
+  private static final byte[][] PREDICTION_ATTRIBUTES =
+      { ascii("epochTime"), ascii("isDeparture"), ascii("dirTag"),
+       ascii("block") };
+
+  /**
+   * Scans 'document' into 'out', which must have just been reset.
+   *
+   * @return false if the document needs the XmlPullParser. 'out' then holds
+   *         part of the document and needs to be reset again.
+   */
+  static boolean scan(byte[] document, PredictionsParser out) {
+    try {
+      new PredictionsScanner(document, out).scanDocument();
+      return true;
+    } catch (Unexpected e) {
+      return false;
+    }
+  }
+
+  private final byte[] in;
+  private final PredictionsParser out;
+  private int pos = 0;
+  /** The bounds of the last name readName() read. */
+  private int name_start;
+  private int name_end;
+  /**
+   * The bounds of the wanted attributes' values in the last tag, or -1 for
+   * missing attributes.
+   */
+  private final int[] value_starts = new int[4];
+  private final int[] value_ends = new int[4];
+
+  private PredictionsScanner(byte[] in, PredictionsParser out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  private void scanDocument() throws Unexpected {
+    if (in.length >= 3 && in[0] == (byte) 0xEF && in[1] == (byte) 0xBB
+        && in[2] == (byte) 0xBF) {
+      pos = 3;
+    }
+    while (true) {
+      skipWhitespace();
+      expect('<');
+      if (peek() != '?') {
+        break;
+      }
+      pos++;
+      readName();
+      if (!nameIs(XML)) {
+        throw UNEXPECTED;
+      }
+      if (attributes(XML_ATTRIBUTES) != '?') {
+        throw UNEXPECTED;
+      }
+      if (value_starts[0] != -1
+          && !equalsIgnoreCase(value_starts[0], value_ends[0], UTF_8)) {
+        throw UNEXPECTED;
+      }
+      pos++;
+      expect('>');
+    }
+
+    readName();
+    if (!nameIs(BODY)) {
+      throw UNEXPECTED;
+    }
+    final boolean open = startTag(BODY_ATTRIBUTES);
+    out.copyright = string(0);
+    if (open) {
+      while (nextChild(BODY)) {
+        if (nameIs(PREDICTIONS)) {
+          scanPredictions();
+        } else {
+          skipElement();
+        }
+      }
+    }
+    skipWhitespace();
+    if (pos != in.length) {
+      throw UNEXPECTED;
+    }
+    out.finishDocument();
+  }
+
+  private void scanPredictions() throws Unexpected {
+    final boolean open = startTag(PREDICTIONS_ATTRIBUTES);
+    final String route_tag = tag(0);
+    final String stop_tag = tag(1);
+    if (!open) {
+      return;
+    }
+    if (value_starts[2] != -1) {
+      // dirTitleBecauseNoPredictions
+      skipContent();
+      return;
+    }
+    while (nextChild(PREDICTIONS)) {
+      if (nameIs(DIRECTION)) {
+        scanDirection(route_tag, stop_tag);
+      } else {
+        skipElement();
+      }
+    }
+  }
+
+  private void scanDirection(String route_tag, String stop_tag)
+      throws Unexpected {
+    final boolean open = startTag(DIRECTION_ATTRIBUTES);
+    final String direction_title = tag(0);
+    out.startDirection();
+    if (!open) {
+      return;
+    }
+    while (nextChild(DIRECTION)) {
+      if (!nameIs(PREDICTION)) {
+        throw UNEXPECTED;
+      }
+      final boolean prediction_open = startTag(PREDICTION_ATTRIBUTES);
+      final long epoch_time = parseLong(0);
+      final boolean is_departure =
+          value_starts[1] != -1
+              && equalsIgnoreCase(value_starts[1], value_ends[1], TRUE);
+      out.addPrediction(route_tag, stop_tag, epoch_time, is_departure, tag(2),
+          tag(3), direction_title);
+      if (prediction_open) {
+        skipText();
+        expect('<');
+        expect('/');
+        readName();
+        if (!nameIs(PREDICTION)) {
+          throw UNEXPECTED;
+        }
+        skipWhitespace();
+        expect('>');
+      }
+    }
+  }
+
+  /**
+   * Moves to the next child element of 'parent' and reads its name, or
+   * consumes the parent's end tag.
+   *
+   * @return false at the parent's end tag.
+   */
+  private boolean nextChild(byte[] parent) throws Unexpected {
+    skipWhitespace();
+    expect('<');
+    final byte c = peek();
+    if (c == '/') {
+      pos++;
+      readName();
+      if (!nameIs(parent)) {
+        throw UNEXPECTED;
+      }
+      skipWhitespace();
+      expect('>');
+      return false;
+    }
+    if (c == '!' || c == '?') {
+      throw UNEXPECTED;
+    }
+    readName();
+    return true;
+  }
+
+  /**
+   * Skips the rest of an element whose name has been read.
+   */
+  private void skipElement() throws Unexpected {
+    if (startTag(NO_ATTRIBUTES)) {
+      skipContent();
+    }
+  }
+
+  /**
+   * Skips past the end tag matching the start tag just read.
+   */
+  private void skipContent() throws Unexpected {
+    int depth = 1;
+    while (depth > 0) {
+      skipText();
+      expect('<');
+      final byte c = peek();
+      if (c == '/') {
+        while (peek() != '>') {
+          pos++;
+        }
+        pos++;
+        depth--;
+      } else if (c == '!' || c == '?') {
+        throw UNEXPECTED;
+      } else {
+        readName();
+        if (startTag(NO_ATTRIBUTES)) {
+          depth++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the attributes and end of a start tag whose name has been read.
+   *
+   * @return true if the element has content, false if it was written <a/>.
+   */
+  private boolean startTag(byte[][] wanted) throws Unexpected {
+    final byte end = attributes(wanted);
+    pos++;
+    if (end == '>') {
+      return true;
+    }
+    if (end == '/') {
+      expect('>');
+      return false;
+    }
+    throw UNEXPECTED;
+  }
+
+  /**
+   * Reads attributes up to the end of a tag, recording where the values of
+   * the 'wanted' ones are.
+   *
+   * @return The character that ends the tag, without consuming it.
+   */
+  private byte attributes(byte[][] wanted) throws Unexpected {
+    for (int i = 0; i < wanted.length; i++) {
+      value_starts[i] = -1;
+    }
+    while (true) {
+      skipWhitespace();
+      final byte c = peek();
+      if (c == '>' || c == '/' || c == '?') {
+        return c;
+      }
+      readName();
+      skipWhitespace();
+      expect('=');
+      skipWhitespace();
+      final byte quote = peek();
+      if (quote != '"' && quote != '\'') {
+        throw UNEXPECTED;
+      }
+      final int value_start = ++pos;
+      while (peek() != quote) {
+        if (in[pos] == '<') {
+          throw UNEXPECTED;
+        }
+        pos++;
+      }
+      final int value_end = pos++;
+      for (int i = 0; i < wanted.length; i++) {
+        if (nameIs(wanted[i])) {
+          value_starts[i] = value_start;
+          value_ends[i] = value_end;
+          break;
+        }
+      }
+    }
+  }
+
+  private void readName() throws Unexpected {
+    name_start = pos;
+    while (pos < in.length) {
+      final byte c = in[pos];
+      if (isWhitespace(c) || c == '/' || c == '>' || c == '=' || c == '?') {
+        break;
+      }
+      pos++;
+    }
+    name_end = pos;
+    if (name_start == name_end) {
+      throw UNEXPECTED;
+    }
+  }
+
+  private boolean nameIs(byte[] name) {
+    if (name_end - name_start != name.length) {
+      return false;
+    }
+    for (int i = 0; i < name.length; i++) {
+      if (in[name_start + i] != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The 'index'th wanted attribute's value as an interned tag, or
+   *         null if it was missing.
+   */
+  private String tag(int index) throws Unexpected {
+    final int start = value_starts[index];
+    if (start == -1) {
+      return null;
+    }
+    if (isPlainAscii(start, value_ends[index])) {
+      return TagInterner.intern(in, start, value_ends[index]);
+    }
+    return TagInterner.intern(string(index));
+  }
+
+  /**
+   * @return The 'index'th wanted attribute's value, or null if it was missing.
+   */
+  private String string(int index) throws Unexpected {
+    final int start = value_starts[index];
+    if (start == -1) {
+      return null;
+    }
+    final int end = value_ends[index];
+    final String raw;
+    try {
+      raw = new String(in, start, end - start, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw UNEXPECTED;
+    }
+    if (isPlainAscii(start, end) || raw.indexOf('&') == -1) {
+      return raw;
+    }
+    final StringBuilder result = new StringBuilder(raw.length());
+    int i = 0;
+    while (i < raw.length()) {
+      final char c = raw.charAt(i);
+      if (c != '&') {
+        result.append(c);
+        i++;
+        continue;
+      }
+      final int semicolon = raw.indexOf(';', i);
+      if (semicolon == -1) {
+        throw UNEXPECTED;
+      }
+      final String entity = raw.substring(i + 1, semicolon);
+      if (entity.equals("amp")) {
+        result.append('&');
+      } else if (entity.equals("lt")) {
+        result.append('<');
+      } else if (entity.equals("gt")) {
+        result.append('>');
+      } else if (entity.equals("quot")) {
+        result.append('"');
+      } else if (entity.equals("apos")) {
+        result.append('\'');
+      } else {
+        throw UNEXPECTED;
+      }
+      i = semicolon + 1;
+    }
+    return result.toString();
+  }
+
+  /**
+   * @return true if in[start, end) is ASCII without any entities, so it can
+   *         be used as is.
+   * @throws Unexpected
+   *           if it holds control characters, which XML would normalize.
+   */
+  private boolean isPlainAscii(int start, int end) throws Unexpected {
+    boolean plain = true;
+    for (int i = start; i < end; i++) {
+      final byte c = in[i];
+      if (c < 0 || c == '&') {
+        plain = false;
+      } else if (c < 0x20) {
+        throw UNEXPECTED;
+      }
+    }
+    return plain;
+  }
+
+  /**
+   * @return The 'index'th wanted attribute's value as a non-negative decimal
+   *         number.
+   */
+  private long parseLong(int index) throws Unexpected {
+    final int start = value_starts[index];
+    final int end = value_ends[index];
+    // 18 digits can't overflow.
+    if (start == -1 || start == end || end - start > 18) {
+      throw UNEXPECTED;
+    }
+    long result = 0;
+    for (int i = start; i < end; i++) {
+      final int digit = in[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw UNEXPECTED;
+      }
+      result = result * 10 + digit;
+    }
+    return result;
+  }
+
+  /**
+   * @param lower
+   *          Lower-case ASCII letters, digits and punctuation.
+   */
+  private boolean equalsIgnoreCase(int start, int end, byte[] lower) {
+    if (end - start != lower.length) {
+      return false;
+    }
+    for (int i = 0; i < lower.length; i++) {
+      final byte c = in[start + i];
+      final byte folded = c >= 'A' && c <= 'Z' ? (byte) (c + ('a' - 'A')) : c;
+      if (folded != lower[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Skips character data up to the next '<'.
+   */
+  private void skipText() throws Unexpected {
+    while (peek() != '<') {
+      pos++;
+    }
+  }
+
+  private void skipWhitespace() {
+    while (pos < in.length && isWhitespace(in[pos])) {
+      pos++;
+    }
+  }
+
+  private static boolean isWhitespace(byte c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  private byte peek() throws Unexpected {
+    if (pos >= in.length) {
+      throw UNEXPECTED;
+    }
+    return in[pos];
+  }
+
+  private void expect(char c) throws Unexpected {
+    if (peek() != c) {
+      throw UNEXPECTED;
+    }
+    pos++;
+  }
+
+  private static byte[] ascii(String s) {
+    final byte[] result = new byte[s.length()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte) s.charAt(i);
+    }
+    return result;
+  }
+}
@@ -17,11 +17,12 @@ public class PreferenceManager {
   private String m_saved_line_selected = "";
 
   public PreferenceManager(final Activity prefs_activity) {
-    Globals.EXECUTOR.execute(new Runnable() {
-      public void run() {
-        loadPreferences(prefs_activity);
-      }
-    });
+    Globals.EXECUTOR.execute(LanedExecutor.Lane.USER_BLOCKING,
+        new Runnable() {
+          public void run() {
+            loadPreferences(prefs_activity);
+          }
+        });
   }
 
   public synchronized String getSavedLine() {
@@ -0,0 +1,39 @@
+package info.yasskin.droidmuni;
+
+/**
+ * Polls often while a bus is a few minutes away, since that's when the user is
+ * deciding whether to run for it and NextBus's estimate moves the most, and
+ * backs off when the next bus is far away or there's nothing to show.
+ */
+public class ProximityRepollPolicy implements RepollPolicy {
+  private static final long ONE_MINUTE = 60 * 1000;
+
+  static final long IMMINENT_INTERVAL_MS = 30 * 1000;
+  static final long NEAR_INTERVAL_MS = ONE_MINUTE;
+  static final long DEFAULT_INTERVAL_MS = 2 * ONE_MINUTE;
+  static final long FAR_INTERVAL_MS = 5 * ONE_MINUTE;
+
+  /** Arrivals sooner than this are "imminent". */
+  static final long IMMINENT_HORIZON_MS = 5 * ONE_MINUTE;
+  /** Arrivals sooner than this are "near". */
+  static final long NEAR_HORIZON_MS = 15 * ONE_MINUTE;
+  /** Arrivals at least this far out are "far". */
+  static final long FAR_HORIZON_MS = 30 * ONE_MINUTE;
+
+  public long nextPollDelayMs(long now_ms, long soonest_arrival_ms) {
+    if (soonest_arrival_ms == NO_ARRIVAL) {
+      return FAR_INTERVAL_MS;
+    }
+    final long time_left = soonest_arrival_ms - now_ms;
+    if (time_left < IMMINENT_HORIZON_MS) {
+      return IMMINENT_INTERVAL_MS;
+    }
+    if (time_left < NEAR_HORIZON_MS) {
+      return NEAR_INTERVAL_MS;
+    }
+    if (time_left < FAR_HORIZON_MS) {
+      return DEFAULT_INTERVAL_MS;
+    }
+    return FAR_INTERVAL_MS;
+  }
+}
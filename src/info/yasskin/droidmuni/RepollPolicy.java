@@ -0,0 +1,22 @@
+package info.yasskin.droidmuni;
+
+/**
+ * Decides how long to wait before asking NextBus for new predictions.
+ */
+public interface RepollPolicy {
+  /**
+   * Passed as soonest_arrival_ms when there are no upcoming predictions.
+   */
+  public static final long NO_ARRIVAL = Long.MAX_VALUE;
+
+  /**
+   * @param now_ms
+   *          The current System.currentTimeMillis().
+   * @param soonest_arrival_ms
+   *          The earliest predicted arrival that hasn't happened yet, or
+   *          NO_ARRIVAL.
+   * @return How many milliseconds to wait before polling again. Always
+   *         positive.
+   */
+  public long nextPollDelayMs(long now_ms, long soonest_arrival_ms);
+}
@@ -0,0 +1,158 @@
+package info.yasskin.droidmuni;
+
+import java.util.ArrayList;
+
+/**
+ * Holds a parsed route in compact parallel arrays so that it can be fetched
+ * and parsed without holding the database lock, and then written in one short
+ * transaction by replaying it into a Db.RouteWriter.
+ *
+ * That trades away constant-memory parsing: the batch holds the whole parsed
+ * route, including its simplified paths. That is a few tens of kilobytes for
+ * even the longest routes, much less than the raw XML, and only one batch
+ * per refreshing route is alive at a time.
+ */
+final class RouteBatch implements RouteConfigParser.Sink {
+  private String m_tag;
+
+  private int m_stop_count = 0;
+  private int[] m_stop_ids = new int[64];
+  private int[] m_stop_tags = new int[64];
+  private String[] m_stop_titles = new String[64];
+  private double[] m_stop_latitudes = new double[64];
+  private double[] m_stop_longitudes = new double[64];
+
+  private int m_direction_count = 0;
+  private String[] m_direction_tags = new String[4];
+  private String[] m_direction_titles = new String[4];
+  private String[] m_direction_names = new String[4];
+  private boolean[] m_direction_use_for_ui = new boolean[4];
+  /**
+   * Where each direction's stops start in m_direction_stops. A direction's
+   * stops end where the next one's start.
+   */
+  private int[] m_direction_starts = new int[4];
+  private int m_direction_stop_count = 0;
+  private int[] m_direction_stops = new int[128];
+
+  private final ArrayList<Polyline> m_paths = new ArrayList<Polyline>();
+  private int[] m_path_indices = new int[8];
+
+  public void beginRoute(String tag) {
+    // A retried parse starts over.
+    m_tag = tag;
+    m_stop_count = 0;
+    m_direction_count = 0;
+    m_direction_stop_count = 0;
+    m_paths.clear();
+  }
+
+  public void stop(int id, int tag, String title, double lat, double lon) {
+    if (m_stop_count == m_stop_ids.length) {
+      final int size = m_stop_count * 2;
+      m_stop_ids = grow(m_stop_ids, size);
+      m_stop_tags = grow(m_stop_tags, size);
+      m_stop_titles = grow(m_stop_titles, size);
+      m_stop_latitudes = grow(m_stop_latitudes, size);
+      m_stop_longitudes = grow(m_stop_longitudes, size);
+    }
+    m_stop_ids[m_stop_count] = id;
+    m_stop_tags[m_stop_count] = tag;
+    m_stop_titles[m_stop_count] = title;
+    m_stop_latitudes[m_stop_count] = lat;
+    m_stop_longitudes[m_stop_count] = lon;
+    m_stop_count++;
+  }
+
+  public void beginDirection(String tag, String title, String name,
+      boolean use_for_ui) {
+    if (m_direction_count == m_direction_tags.length) {
+      final int size = m_direction_count * 2;
+      m_direction_tags = grow(m_direction_tags, size);
+      m_direction_titles = grow(m_direction_titles, size);
+      m_direction_names = grow(m_direction_names, size);
+      final boolean[] use_for_ui_bigger = new boolean[size];
+      System.arraycopy(m_direction_use_for_ui, 0, use_for_ui_bigger, 0,
+          m_direction_count);
+      m_direction_use_for_ui = use_for_ui_bigger;
+      m_direction_starts = grow(m_direction_starts, size);
+    }
+    m_direction_tags[m_direction_count] = tag;
+    m_direction_titles[m_direction_count] = title;
+    m_direction_names[m_direction_count] = name;
+    m_direction_use_for_ui[m_direction_count] = use_for_ui;
+    m_direction_starts[m_direction_count] = m_direction_stop_count;
+    m_direction_count++;
+  }
+
+  public void directionStop(int stop_id, int order) {
+    if (m_direction_stop_count == m_direction_stops.length) {
+      m_direction_stops =
+          grow(m_direction_stops, m_direction_stop_count * 2);
+    }
+    m_direction_stops[m_direction_stop_count++] = stop_id;
+  }
+
+  public void endDirection() {
+  }
+
+  public void path(int index, Polyline path) {
+    if (m_paths.size() == m_path_indices.length) {
+      m_path_indices = grow(m_path_indices, m_paths.size() * 2);
+    }
+    m_path_indices[m_paths.size()] = index;
+    m_paths.add(path);
+  }
+
+  /**
+   * @return The ids of the route's stops.
+   */
+  int[] getStopIds() {
+    final int[] result = new int[m_stop_count];
+    System.arraycopy(m_stop_ids, 0, result, 0, m_stop_count);
+    return result;
+  }
+
+  /**
+   * Sends the route to 'sink' in the order a RouteConfigParser would have.
+   */
+  void replay(RouteConfigParser.Sink sink) {
+    sink.beginRoute(m_tag);
+    for (int i = 0; i < m_stop_count; i++) {
+      sink.stop(m_stop_ids[i], m_stop_tags[i], m_stop_titles[i],
+          m_stop_latitudes[i], m_stop_longitudes[i]);
+    }
+    for (int i = 0; i < m_direction_count; i++) {
+      sink.beginDirection(m_direction_tags[i], m_direction_titles[i],
+          m_direction_names[i], m_direction_use_for_ui[i]);
+      final int end =
+          i + 1 < m_direction_count ? m_direction_starts[i + 1]
+              : m_direction_stop_count;
+      for (int j = m_direction_starts[i]; j < end; j++) {
+        sink.directionStop(m_direction_stops[j], j - m_direction_starts[i]);
+      }
+      sink.endDirection();
+    }
+    for (int i = 0; i < m_paths.size(); i++) {
+      sink.path(m_path_indices[i], m_paths.get(i));
+    }
+  }
+
+  private static int[] grow(int[] array, int size) {
+    final int[] result = new int[size];
+    System.arraycopy(array, 0, result, 0, array.length);
+    return result;
+  }
+
+  private static double[] grow(double[] array, int size) {
+    final double[] result = new double[size];
+    System.arraycopy(array, 0, result, 0, array.length);
+    return result;
+  }
+
+  private static String[] grow(String[] array, int size) {
+    final String[] result = new String[size];
+    System.arraycopy(array, 0, result, 0, array.length);
+    return result;
+  }
+}
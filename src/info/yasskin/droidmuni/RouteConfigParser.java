@@ -1,19 +1,117 @@
 package info.yasskin.droidmuni;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import android.graphics.Color;
 import android.util.Log;
-import android.util.SparseArray;
+import android.util.SparseIntArray;
 
+/**
+ * Parses a routeConfig document, handing each stop and direction to a Sink as
+ * soon as it's read instead of building the whole route in memory.
+ */
 class RouteConfigParser extends Parser {
+	/**
+	 * Receives a route's contents in document order. NextBus lists all of a
+	 * route's stops before the directions that refer to them.
+	 */
+	interface Sink {
+		/**
+		 * Called at the start of the <route> element, before any other method.
+		 * A sink may see several routes if a failed request is retried, and
+		 * should forget the earlier, partial ones.
+		 */
+		void beginRoute(String tag);
+
+		void stop(int id, int tag, String title, double lat, double lon);
+
+		void beginDirection(String tag, String title, String name,
+				boolean use_for_ui);
+
+		/**
+		 * Adds the stop with id 'stop_id' to the current direction. 'order'
+		 * counts up from 0 within each direction.
+		 */
+		void directionStop(int stop_id, int order);
+
+		void endDirection();
+
+		/**
+		 * Adds the route's 'index'th <path>, already simplified. NextBus
+		 * doesn't say which directions a path belongs to.
+		 */
+		void path(int index, Polyline path);
+	}
+
+	/**
+	 * @param path_tolerance_m
+	 *            How far, in meters, simplifying a <path> may move it. 0 keeps
+	 *            every point.
+	 * @param stored_digest
+	 *            The getDigest() of the routeConfig the caller last stored, or
+	 *            null. A response with the same digest is still parsed, but
+	 *            the result is UNCHANGED, so the caller can skip storing it.
+	 */
+	RouteConfigParser(Sink sink, double path_tolerance_m, byte[] stored_digest) {
+		this.sink = sink;
+		this.path_tolerance_m = path_tolerance_m;
+		this.stored_digest = stored_digest;
+	}
+
+	/**
+	 * Digests the response as it streams through the parser, so memory stays
+	 * independent of the document's size, and compares the digest once the
+	 * document ends. Most refreshes download exactly the routeConfig we
+	 * already have.
+	 */
+	@Override
+	public void parse(InputStream input) {
+		digest = null;
+		final MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			Log.w("DroidMuni", "Can't digest routeConfig", e);
+			super.parse(input);
+			return;
+		}
+		final DigestInputStream digesting = new DigestInputStream(input, md5);
+		super.parse(digesting);
+		if (result_state != ResultState.SUCCESS) {
+			return;
+		}
+		try {
+			// The pull parser stops at </body>, but the digest has to cover
+			// the whole response.
+			final byte[] buffer = new byte[1024];
+			while (digesting.read(buffer) != -1) {
+			}
+		} catch (IOException e) {
+			Log.d("DroidMuni", "IO error", e);
+			result_state = ResultState.IO_ERROR;
+			return;
+		}
+		digest = md5.digest();
+		if (stored_digest != null
+				&& MessageDigest.isEqual(digest, stored_digest)) {
+			result_state = ResultState.UNCHANGED;
+		}
+	}
+
+	/**
+	 * @return The MD5 digest of the last response, or null.
+	 */
+	public byte[] getDigest() {
+		return digest;
+	}
+
 	public String getTag() {
 		return tag;
 	}
@@ -38,14 +136,6 @@ class RouteConfigParser extends Parser {
 		return oppositeColor;
 	}
 
-	public SparseArray<Db.Stop> getStops() {
-		return stops;
-	}
-
-	public Map<String, Db.Direction> getDirections() {
-		return directions;
-	}
-
 	// Implementation
 
 	private String tag;
@@ -54,8 +144,31 @@ class RouteConfigParser extends Parser {
 	private String shortTitle;
 	private int color;
 	private int oppositeColor;
-	private final SparseArray<Db.Stop> stops = new SparseArray<Db.Stop>();
-	private final Map<String, Db.Direction> directions = new HashMap<String, Db.Direction>();
+	private final Sink sink;
+	private final double path_tolerance_m;
+	private final byte[] stored_digest;
+	private byte[] digest = null;
+	private int path_count = 0;
+	// Reused for each <path>'s points.
+	private int[] path_lat_e6 = new int[64];
+	private int[] path_lon_e6 = new int[64];
+	/**
+	 * Maps stop tags to stop ids, since directions refer to stops by tag but
+	 * the database stores them by id.
+	 */
+	private final SparseIntArray stop_ids = new SparseIntArray();
+
+	@Override
+	protected void resetDocument() {
+		tag = null;
+		routeCode = null;
+		title = null;
+		shortTitle = null;
+		color = 0;
+		oppositeColor = 0;
+		stop_ids.clear();
+		path_count = 0;
+	}
 
 	private int parseColorDefault(String color, int defalt) {
 		if (color == null) {
@@ -90,6 +203,7 @@ class RouteConfigParser extends Parser {
 		this.color = parseColorDefault(getAttr("color"), Color.BLACK);
 		this.oppositeColor = parseColorDefault(getAttr("oppositeColor"),
 				Color.WHITE);
+		sink.beginRoute(this.tag);
 
 		while (true) {
 			parser.nextTag();
@@ -103,8 +217,7 @@ class RouteConfigParser extends Parser {
 			} else if (parser.getName().equals("direction")) {
 				parseDirection();
 			} else if (parser.getName().equals("path")) {
-				// I don't know what to do with paths yet, so ignore them.
-				skipToEndOfTag();
+				parsePath();
 			} else {
 				Log.w("DroidMuni", "Unexpected element in route: "
 						+ parser.getName());
@@ -118,12 +231,28 @@ class RouteConfigParser extends Parser {
 	private void parseStop() throws XmlPullParserException, IOException {
 		parser.require(XmlPullParser.START_TAG, null, "stop");
 
-                int tag = Integer.parseInt(getAttr("tag"), 10);
-                int id = Integer.parseInt(getAttr("stopId"), 10);
+		final int tag;
+		final int id;
+		final double lat;
+		final double lon;
+		try {
+			tag = Integer.parseInt(getAttr("tag"), 10);
+			id = Integer.parseInt(getAttr("stopId"), 10);
+			final String lat_attr = getAttr("lat");
+			final String lon_attr = getAttr("lon");
+			if (lat_attr == null || lon_attr == null) {
+				throw new NumberFormatException("Missing coordinate");
+			}
+			lat = Double.parseDouble(lat_attr);
+			lon = Double.parseDouble(lon_attr);
+		} catch (NumberFormatException e) {
+			// parse() reports this as a PARSE_ERROR, so a route missing a stop
+			// is never stored.
+			throw new XmlPullParserException("Bad stop", parser, e);
+		}
 		String title = getAttr("title");
-		double lat = Double.parseDouble(getAttr("lat"));
-		double lon = Double.parseDouble(getAttr("lon"));
-		stops.put(tag, new Db.Stop(id, tag, title, lat, lon));
+		stop_ids.put(tag, id);
+		sink.stop(id, tag, title, lat, lon);
 		skipToEndOfTag();
 	}
 
@@ -134,7 +263,8 @@ class RouteConfigParser extends Parser {
 		final String title = getAttr("title");
 		final String name = getAttr("name");
 		final boolean useForUI = Boolean.parseBoolean(getAttr("useForUI"));
-		final List<Db.Stop> stops = new ArrayList<Db.Stop>();
+		sink.beginDirection(tag, title, name, useForUI);
+		int order = 0;
 
 		final int original_depth = parser.getDepth();
 		while (true) {
@@ -150,23 +280,68 @@ class RouteConfigParser extends Parser {
 				continue;
 			}
 
-			Db.Stop stop;
+			int stop_id;
 			try {
-				int stop_id = Integer.parseInt(getAttr("tag"), 10);
-				stop = this.stops.get(stop_id);
+				int stop_tag = Integer.parseInt(getAttr("tag"), 10);
+				stop_id = this.stop_ids.get(stop_tag, -1);
 			} catch (NumberFormatException e) {
-				stop = null;
+				stop_id = -1;
 			}
-			if (stop == null) {
+			if (stop_id == -1) {
 				Log.w("DroidMuni", "Skipping unrecognized stop tag: "
 						+ getAttr("tag"));
 			} else {
-				stops.add(stop);
+				sink.directionStop(stop_id, order++);
+			}
+			skipToEndOfTag();
+		}
+
+		sink.endDirection();
+	}
+
+	private void parsePath() throws XmlPullParserException, IOException {
+		parser.require(XmlPullParser.START_TAG, null, "path");
+
+		int count = 0;
+		final int original_depth = parser.getDepth();
+		while (true) {
+			final int event_type = parser.nextTag();
+			if (parser.getDepth() == original_depth
+					&& event_type == XmlPullParser.END_TAG) {
+				break;
+			}
+			parser.require(XmlPullParser.START_TAG, null, "point");
+			final String lat = getAttr("lat");
+			final String lon = getAttr("lon");
+			try {
+				if (lat == null || lon == null) {
+					throw new NumberFormatException("Missing coordinate");
+				}
+				final int lat_e6 = (int) Math.round(Double.parseDouble(lat) * 1E6);
+				final int lon_e6 = (int) Math.round(Double.parseDouble(lon) * 1E6);
+				if (count == path_lat_e6.length) {
+					path_lat_e6 = grow(path_lat_e6);
+					path_lon_e6 = grow(path_lon_e6);
+				}
+				path_lat_e6[count] = lat_e6;
+				path_lon_e6[count] = lon_e6;
+				count++;
+			} catch (NumberFormatException e) {
+				Log.w("DroidMuni", "Skipping bad path point: "
+						+ renderTag(parser));
 			}
 			skipToEndOfTag();
 		}
 
-		this.directions.put(tag, new Db.Direction(this.directions.size(), tag,
-				title, name, useForUI, stops));
+		if (count >= 2) {
+			sink.path(path_count++, new Polyline(path_lat_e6, path_lon_e6, count)
+					.simplify(path_tolerance_m));
+		}
+	}
+
+	private static int[] grow(int[] array) {
+		final int[] result = new int[array.length * 2];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
 	}
 }
@@ -0,0 +1,344 @@
+package info.yasskin.droidmuni;
+
+import java.util.HashMap;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * An immutable snapshot of one route's directions and their ordered stops, as
+ * stored in the database, that can answer the directions and stops queries
+ * without SQL.
+ */
+final class RouteGraph {
+  final Db.Route route;
+
+  // Parallel arrays of the route's directions, sorted by tag.
+  private final long[] m_direction_ids;
+  private final String[] m_direction_tags;
+  private final String[] m_direction_titles;
+  private final boolean[] m_direction_use_for_ui;
+  /**
+   * Each direction's stops, in order, as indices into the m_stop_* arrays.
+   */
+  private final int[][] m_direction_stops;
+  /** The number of use_for_ui directions. */
+  private final int m_ui_direction_count;
+
+  // Parallel arrays of every stop on the route.
+  private final long[] m_stop_ids;
+  private final String[] m_stop_titles;
+  private final double[] m_stop_latitudes;
+  private final double[] m_stop_longitudes;
+  private final int m_weight;
+
+  /**
+   * Reads 'route' out of 'tables'.
+   */
+  RouteGraph(SQLiteDatabase tables, Db.Route route) {
+    this.route = route;
+    final String[] route_id = new String[] { route.id + "" };
+    final HashMap<Long, Integer> direction_index = new HashMap<Long, Integer>();
+    final Cursor directions =
+        tables.rawQuery("SELECT _id, tag, title, use_for_ui FROM Directions"
+                        + " WHERE route_id == ? ORDER BY tag ASC", route_id);
+    try {
+      final int direction_count = directions.getCount();
+      m_direction_ids = new long[direction_count];
+      m_direction_tags = new String[direction_count];
+      m_direction_titles = new String[direction_count];
+      m_direction_use_for_ui = new boolean[direction_count];
+      m_direction_stops = new int[direction_count][];
+      int ui_direction_count = 0;
+      for (int i = 0; directions.moveToPosition(i); i++) {
+        m_direction_ids[i] = directions.getLong(0);
+        m_direction_tags[i] = directions.getString(1);
+        m_direction_titles[i] = directions.getString(2);
+        m_direction_use_for_ui[i] = directions.getInt(3) != 0;
+        if (m_direction_use_for_ui[i]) {
+          ui_direction_count++;
+        }
+        direction_index.put(m_direction_ids[i], i);
+      }
+      m_ui_direction_count = ui_direction_count;
+    } finally {
+      directions.close();
+    }
+
+    final Cursor stops =
+        tables.rawQuery("SELECT direction, Stops._id, title, latitude,"
+                        + " longitude FROM Directions JOIN DirectionStops"
+                        + " ON (Directions._id == direction)"
+                        + " JOIN Stops ON (stop == Stops._id)"
+                        + " WHERE route_id == ?"
+                        + " ORDER BY direction, stop_order", route_id);
+    try {
+      // Stops are usually in several directions, so there are fewer of them
+      // than rows.
+      final int row_count = stops.getCount();
+      final long[] stop_ids = new long[row_count];
+      final String[] stop_titles = new String[row_count];
+      final double[] stop_latitudes = new double[row_count];
+      final double[] stop_longitudes = new double[row_count];
+      final HashMap<Long, Integer> stop_index = new HashMap<Long, Integer>();
+      int stop_count = 0;
+
+      // Every direction's stops are in 'order', one direction after another.
+      final int[] order = new int[row_count];
+      int direction_start = 0;
+      int direction = -1;
+      for (int row = 0; stops.moveToPosition(row); row++) {
+        final int next_direction = direction_index.get(stops.getLong(0));
+        if (next_direction != direction) {
+          if (direction != -1) {
+            m_direction_stops[direction] =
+                copyRange(order, direction_start, row);
+          }
+          direction = next_direction;
+          direction_start = row;
+        }
+        final long stop_id = stops.getLong(1);
+        Integer stop = stop_index.get(stop_id);
+        if (stop == null) {
+          stop = stop_count++;
+          stop_index.put(stop_id, stop);
+          stop_ids[stop] = stop_id;
+          stop_titles[stop] = stops.getString(2);
+          stop_latitudes[stop] = stops.getDouble(3);
+          stop_longitudes[stop] = stops.getDouble(4);
+        }
+        order[row] = stop;
+      }
+      if (direction != -1) {
+        m_direction_stops[direction] =
+            copyRange(order, direction_start, row_count);
+      }
+      for (int i = 0; i < m_direction_stops.length; i++) {
+        if (m_direction_stops[i] == null) {
+          m_direction_stops[i] = new int[0];
+        }
+      }
+
+      m_stop_ids = new long[stop_count];
+      m_stop_titles = new String[stop_count];
+      m_stop_latitudes = new double[stop_count];
+      m_stop_longitudes = new double[stop_count];
+      System.arraycopy(stop_ids, 0, m_stop_ids, 0, stop_count);
+      System.arraycopy(stop_titles, 0, m_stop_titles, 0, stop_count);
+      System.arraycopy(stop_latitudes, 0, m_stop_latitudes, 0, stop_count);
+      System.arraycopy(stop_longitudes, 0, m_stop_longitudes, 0, stop_count);
+    } finally {
+      stops.close();
+    }
+
+    int weight = 1 + m_stop_ids.length;
+    for (int[] direction_stops : m_direction_stops) {
+      weight += 1 + direction_stops.length;
+    }
+    m_weight = weight;
+  }
+
+  private static int[] copyRange(int[] array, int from, int to) {
+    final int[] result = new int[to - from];
+    System.arraycopy(array, from, result, 0, result.length);
+    return result;
+  }
+
+  /**
+   * @return Roughly how much memory this graph takes, in rows.
+   */
+  int weight() {
+    return m_weight;
+  }
+
+  /**
+   * @return The use_for_ui directions, in tag order, with the columns _id,
+   *         route_tag, tag and title, or null if there aren't any.
+   */
+  Cursor directionsCursor() {
+    if (m_ui_direction_count == 0) {
+      return null;
+    }
+    final int[] rows = new int[m_ui_direction_count];
+    int row = 0;
+    for (int i = 0; i < m_direction_tags.length; i++) {
+      if (m_direction_use_for_ui[i]) {
+        rows[row++] = i;
+      }
+    }
+    return new DirectionCursor(rows);
+  }
+
+  /**
+   * @return The stops of the direction tagged 'direction_tag', in order, with
+   *         the columns _id, route_tag, direction_tag, stop_id, title, lat and
+   *         lon, or null if there aren't any.
+   */
+  Cursor stopsCursor(String direction_tag) {
+    for (int i = 0; i < m_direction_tags.length; i++) {
+      if (m_direction_tags[i].equals(direction_tag)) {
+        if (m_direction_stops[i].length == 0) {
+          return null;
+        }
+        return new StopCursor(direction_tag, m_direction_stops[i]);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A read-only cursor whose rows are indices into a RouteGraph's arrays.
+   */
+  private static abstract class ArrayCursor extends AbstractCursor {
+    private final String[] m_column_names;
+    protected final int[] m_rows;
+
+    ArrayCursor(String[] column_names, int[] rows) {
+      m_column_names = column_names;
+      m_rows = rows;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+      return m_column_names;
+    }
+
+    @Override
+    public int getCount() {
+      return m_rows.length;
+    }
+
+    @Override
+    public long getLong(int column) {
+      return Long.parseLong(getString(column));
+    }
+
+    @Override
+    public double getDouble(int column) {
+      return Double.parseDouble(getString(column));
+    }
+
+    @Override
+    public int getInt(int column) {
+      return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+      return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+      return (float) getDouble(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+      return getString(column) == null;
+    }
+  }
+
+  private final class DirectionCursor extends ArrayCursor {
+    private static final int ID = 0;
+    private static final int ROUTE_TAG = 1;
+    private static final int TAG = 2;
+    private static final int TITLE = 3;
+
+    DirectionCursor(int[] rows) {
+      super(new String[] { "_id", "route_tag", "tag", "title" }, rows);
+    }
+
+    @Override
+    public String getString(int column) {
+      final int direction = m_rows[mPos];
+      switch (column) {
+      case ID:
+        return Long.toString(m_direction_ids[direction]);
+      case ROUTE_TAG:
+        return route.tag;
+      case TAG:
+        return m_direction_tags[direction];
+      case TITLE:
+        return m_direction_titles[direction];
+      default:
+        throw new IllegalArgumentException("No column " + column);
+      }
+    }
+
+    @Override
+    public long getLong(int column) {
+      if (column == ID) {
+        return m_direction_ids[m_rows[mPos]];
+      }
+      return super.getLong(column);
+    }
+  }
+
+  private final class StopCursor extends ArrayCursor {
+    private static final int ID = 0;
+    private static final int ROUTE_TAG = 1;
+    private static final int DIRECTION_TAG = 2;
+    private static final int STOP_ID = 3;
+    private static final int TITLE = 4;
+    private static final int LAT = 5;
+    private static final int LON = 6;
+
+    private final String m_direction_tag;
+
+    StopCursor(String direction_tag, int[] rows) {
+      super(new String[] { "_id", "route_tag", "direction_tag", "stop_id",
+                          "title", "lat", "lon" }, rows);
+      m_direction_tag = direction_tag;
+    }
+
+    @Override
+    public String getString(int column) {
+      final int stop = m_rows[mPos];
+      switch (column) {
+      case ID:
+      case STOP_ID:
+        return Long.toString(m_stop_ids[stop]);
+      case ROUTE_TAG:
+        return route.tag;
+      case DIRECTION_TAG:
+        return m_direction_tag;
+      case TITLE:
+        return m_stop_titles[stop];
+      case LAT:
+        return Double.toString(m_stop_latitudes[stop]);
+      case LON:
+        return Double.toString(m_stop_longitudes[stop]);
+      default:
+        throw new IllegalArgumentException("No column " + column);
+      }
+    }
+
+    @Override
+    public long getLong(int column) {
+      switch (column) {
+      case ID:
+      case STOP_ID:
+        return m_stop_ids[m_rows[mPos]];
+      case LAT:
+      case LON:
+        return (long) getDouble(column);
+      default:
+        return super.getLong(column);
+      }
+    }
+
+    @Override
+    public double getDouble(int column) {
+      switch (column) {
+      case LAT:
+        return m_stop_latitudes[m_rows[mPos]];
+      case LON:
+        return m_stop_longitudes[m_rows[mPos]];
+      default:
+        return getLong(column);
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package info.yasskin.droidmuni;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the RouteGraphs of recently-viewed routes so that moving between
+ * spinners doesn't have to query and join four tables each time. The data
+ * behind a graph changes at most daily, when a route is refreshed.
+ *
+ * Holds graphs up to a total weight, evicting the least recently used routes
+ * when over. Every invalidation bumps a version, and a graph loaded while the
+ * version changed isn't cached, so a load that races with a write can't
+ * reinstate stale data. Thread-safe.
+ */
+final class RouteGraphCache {
+  /**
+   * Enough for a few dozen typical routes, at a few hundred kilobytes.
+   */
+  static final int DEFAULT_MAX_WEIGHT = 8192;
+
+  private final int m_max_weight;
+  // Guarded by this. Iterates from least to most recently used.
+  private final LinkedHashMap<String, RouteGraph> m_graphs =
+      new LinkedHashMap<String, RouteGraph>(16, 0.75f, true);
+  // Guarded by this.
+  private int m_weight = 0;
+  // Guarded by this.
+  private long m_version = 0;
+
+  RouteGraphCache(int max_weight) {
+    m_max_weight = max_weight;
+  }
+
+  /**
+   * @return The cached graph for 'route_tag', or null.
+   */
+  synchronized RouteGraph get(String route_tag) {
+    return m_graphs.get(route_tag);
+  }
+
+  /**
+   * @return The current version, to pass to put() after loading a graph.
+   */
+  synchronized long getVersion() {
+    return m_version;
+  }
+
+  /**
+   * Caches 'graph' unless something was invalidated since getVersion()
+   * returned 'version'.
+   */
+  synchronized void put(RouteGraph graph, long version) {
+    if (version != m_version) {
+      return;
+    }
+    final int weight = graph.weight();
+    if (weight > m_max_weight) {
+      return;
+    }
+    final RouteGraph old = m_graphs.put(graph.route.tag, graph);
+    if (old != null) {
+      m_weight -= old.weight();
+    }
+    m_weight += weight;
+    final Iterator<RouteGraph> eldest = m_graphs.values().iterator();
+    while (m_weight > m_max_weight) {
+      m_weight -= eldest.next().weight();
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Forgets the graph for 'route_tag'. Call after committing a change to the
+   * route.
+   */
+  synchronized void invalidate(String route_tag) {
+    m_version++;
+    final RouteGraph old = m_graphs.remove(route_tag);
+    if (old != null) {
+      m_weight -= old.weight();
+    }
+  }
+
+  /**
+   * Forgets every graph. Call after committing a change to the routes list.
+   */
+  synchronized void invalidateAll() {
+    m_version++;
+    m_graphs.clear();
+    m_weight = 0;
+  }
+}
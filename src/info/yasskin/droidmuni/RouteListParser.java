@@ -13,6 +13,13 @@ import org.xmlpull.v1.XmlPullParserException;
  * =routeList&a=sf-muni request.
  */
 class RouteListParser extends Parser {
+  static final Factory<RouteListParser> FACTORY =
+      new Factory<RouteListParser>() {
+        public RouteListParser newParser() {
+          return new RouteListParser();
+        }
+      };
+
   /**
    * @return the result
    */
@@ -20,7 +27,13 @@ class RouteListParser extends Parser {
     return routes;
   }
 
-  private Map<String, Db.Route> routes = new HashMap<String, Db.Route>();
+  private final Map<String, Db.Route> routes =
+      new HashMap<String, Db.Route>();
+
+  @Override
+  protected void resetDocument() {
+    routes.clear();
+  }
 
   @Override
   protected void parseBody() throws XmlPullParserException, IOException {
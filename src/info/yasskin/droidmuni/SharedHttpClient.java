@@ -0,0 +1,159 @@
+package info.yasskin.droidmuni;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Holds the single HttpClient that the whole process uses to talk to NextBus.
+ * The client pools its connections, so consecutive requests to
+ * webservices.nextbus.com reuse a kept-alive socket instead of paying for a new
+ * DNS lookup and TCP handshake each time. It also asks for gzipped responses
+ * and transparently decompresses them, so parsers always see plain XML.
+ *
+ * Callers must release every response's entity (HttpEntity.consumeContent())
+ * or the connection never returns to the pool.
+ */
+final class SharedHttpClient {
+  private SharedHttpClient() {
+  }
+
+  /** Default time to wait for a TCP connection to be established. */
+  static final int DEFAULT_CONNECT_TIMEOUT_MS = 15 * 1000;
+  /** Default time to wait between bytes of a response. */
+  static final int DEFAULT_READ_TIMEOUT_MS = 20 * 1000;
+
+  /**
+   * NextBus is the only host we talk to, so this is effectively the number of
+   * concurrent requests we allow.
+   */
+  private static final int MAX_CONNECTIONS = 4;
+  /**
+   * How long to wait for a connection from the pool before giving up.
+   */
+  private static final long POOL_TIMEOUT_MS = 30 * 1000;
+
+  // Lazily created by get(). Guarded by SharedHttpClient.class.
+  private static DefaultHttpClient s_client;
+
+  /**
+   * @return The process-wide client, creating it on the first call.
+   */
+  static synchronized DefaultHttpClient get() {
+    if (s_client == null) {
+      s_client = createClient();
+    }
+    return s_client;
+  }
+
+  /**
+   * Changes the timeouts used by future requests. Requests already in flight
+   * keep their old timeouts.
+   */
+  static synchronized void setTimeouts(int connect_timeout_ms,
+      int read_timeout_ms) {
+    HttpParams params = get().getParams();
+    HttpConnectionParams.setConnectionTimeout(params, connect_timeout_ms);
+    HttpConnectionParams.setSoTimeout(params, read_timeout_ms);
+  }
+
+  private static DefaultHttpClient createClient() {
+    HttpParams params = new BasicHttpParams();
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    HttpProtocolParams.setContentCharset(params, "UTF-8");
+    HttpConnectionParams.setConnectionTimeout(params,
+        DEFAULT_CONNECT_TIMEOUT_MS);
+    HttpConnectionParams.setSoTimeout(params, DEFAULT_READ_TIMEOUT_MS);
+    HttpConnectionParams.setStaleCheckingEnabled(params, true);
+    ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(
+        MAX_CONNECTIONS));
+    ConnManagerParams.setTimeout(params, POOL_TIMEOUT_MS);
+
+    SchemeRegistry schemes = new SchemeRegistry();
+    schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(),
+        80));
+    ClientConnectionManager manager =
+        new ThreadSafeClientConnManager(params, schemes);
+
+    DefaultHttpClient client = new DefaultHttpClient(manager, params);
+    client.addRequestInterceptor(new HttpRequestInterceptor() {
+      public void process(HttpRequest request, HttpContext context)
+          throws HttpException, IOException {
+        if (!request.containsHeader("Accept-Encoding")) {
+          request.addHeader("Accept-Encoding", "gzip");
+        }
+      }
+    });
+    client.addResponseInterceptor(new HttpResponseInterceptor() {
+      public void process(HttpResponse response, HttpContext context)
+          throws HttpException, IOException {
+        final HttpEntity entity = response.getEntity();
+        if (entity == null) {
+          return;
+        }
+        final Header encoding = entity.getContentEncoding();
+        if (encoding == null) {
+          return;
+        }
+        for (HeaderElement element : encoding.getElements()) {
+          if ("gzip".equalsIgnoreCase(element.getName())) {
+            response.setEntity(new GzipDecompressingEntity(entity));
+            return;
+          }
+        }
+      }
+    });
+    return client;
+  }
+
+  /**
+   * Presents a gzipped entity as its decompressed content.
+   */
+  private static class GzipDecompressingEntity extends HttpEntityWrapper {
+    public GzipDecompressingEntity(HttpEntity wrapped) {
+      super(wrapped);
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new GZIPInputStream(wrappedEntity.getContent());
+    }
+
+    @Override
+    public long getContentLength() {
+      // The decompressed length isn't known up front.
+      return -1;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+      // Consumers see the decoded content.
+      return null;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package info.yasskin.droidmuni;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls that would compute the same value. The first
+ * caller for a key runs the computation; any caller that arrives with the same
+ * key while that computation is still running blocks until it finishes and
+ * then gets the same result. Nothing is cached after the computation finishes,
+ * so the next call after that starts a fresh computation.
+ *
+ * Because followers share the leader's result object, callers must not mutate
+ * it.
+ */
+final class SingleFlight<K, V> {
+  /**
+   * The computation to coalesce. Unlike Callable, it can't throw checked
+   * exceptions.
+   */
+  interface Call<V> {
+    V call();
+  }
+
+  private static final class Flight<V> {
+    final CountDownLatch done = new CountDownLatch(1);
+    // Written by the leader before done.countDown(), read by followers after
+    // done.await().
+    V result;
+    RuntimeException failure;
+  }
+
+  // Guarded by itself.
+  private final HashMap<K, Flight<V>> m_flights = new HashMap<K, Flight<V>>();
+  private final AtomicLong m_calls = new AtomicLong();
+  private final AtomicLong m_coalesced = new AtomicLong();
+
+  /**
+   * Runs 'call', unless another thread is already running a call for 'key', in
+   * which case waits for that one and returns its result. If the shared call
+   * throws, every caller sees the same exception.
+   *
+   * @return the call's result, or null if this thread was interrupted while
+   *         waiting for another thread's call.
+   */
+  V run(K key, Call<V> call) {
+    m_calls.incrementAndGet();
+    final Flight<V> flight;
+    final boolean leader;
+    synchronized (m_flights) {
+      Flight<V> existing = m_flights.get(key);
+      if (existing == null) {
+        flight = new Flight<V>();
+        m_flights.put(key, flight);
+        leader = true;
+      } else {
+        flight = existing;
+        leader = false;
+      }
+    }
+
+    if (!leader) {
+      m_coalesced.incrementAndGet();
+      try {
+        flight.done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      if (flight.failure != null) {
+        throw flight.failure;
+      }
+      return flight.result;
+    }
+
+    try {
+      flight.result = call.call();
+      return flight.result;
+    } catch (RuntimeException e) {
+      flight.failure = e;
+      throw e;
+    } finally {
+      synchronized (m_flights) {
+        m_flights.remove(key);
+      }
+      flight.done.countDown();
+    }
+  }
+
+  /**
+   * @return The total number of calls to run().
+   */
+  long getCallCount() {
+    return m_calls.get();
+  }
+
+  /**
+   * @return The number of calls to run() that shared another caller's result
+   *         instead of running their own computation.
+   */
+  long getCoalescedCount() {
+    return m_coalesced.get();
+  }
+}
@@ -0,0 +1,91 @@
+package info.yasskin.droidmuni;
+
+/**
+ * Buckets stops into a fixed grid of latitude/longitude cells, so that the
+ * stops near a point can be found with a few range scans over an index on
+ * the cell number instead of measuring the distance to every stop.
+ *
+ * A cell number is its row, counting up from the south pole, shifted above
+ * its column, counting east from the antimeridian. So the cells of one row
+ * are consecutive numbers, and any box is one BETWEEN range per row.
+ */
+public final class StopGrid {
+  /**
+   * The side of a cell, in degrees. In San Francisco that's about 280m north
+   * to south and 220m east to west, so a walking-distance search reads a few
+   * dozen cells.
+   */
+  public static final double CELL_DEGREES = 0.0025;
+  /** 360 / CELL_DEGREES columns fit in this many bits. */
+  private static final int COLUMN_BITS = 18;
+  private static final int ROWS = (int) Math.round(180 / CELL_DEGREES);
+  private static final int COLUMNS = (int) Math.round(360 / CELL_DEGREES);
+  private static final double METERS_PER_DEGREE = 111195.0;
+
+  private StopGrid() {
+  }
+
+  private static int row(double lat) {
+    return clamp((int) Math.floor((lat + 90) / CELL_DEGREES), ROWS - 1);
+  }
+
+  private static int column(double lon) {
+    return clamp((int) Math.floor((lon + 180) / CELL_DEGREES), COLUMNS - 1);
+  }
+
+  private static int clamp(int value, int max) {
+    return Math.max(0, Math.min(max, value));
+  }
+
+  /**
+   * @return The number of the cell containing (lat, lon).
+   */
+  public static long cellOf(double lat, double lon) {
+    return ((long) row(lat) << COLUMN_BITS) | column(lon);
+  }
+
+  /**
+   * Finds the cells that cover every point within 'radius_m' meters of (lat,
+   * lon). Doesn't wrap around the antimeridian, which no transit agency
+   * straddles.
+   *
+   * @return {first, last} cell numbers of each row's range, one row after
+   *         another.
+   */
+  public static long[] cellRangesWithin(double lat, double lon,
+      double radius_m) {
+    final double lat_span = radius_m / METERS_PER_DEGREE;
+    final int first_row = row(lat - lat_span);
+    final int last_row = row(lat + lat_span);
+    // Degrees of longitude are shortest at the edge of the box nearest a
+    // pole, so that edge needs the widest span.
+    final double widest_lat =
+        Math.min(89.0, Math.max(Math.abs(lat - lat_span),
+            Math.abs(lat + lat_span)));
+    final double lon_span =
+        lat_span / Math.cos(Math.toRadians(widest_lat));
+    final int first_column = column(lon - lon_span);
+    final int last_column = column(lon + lon_span);
+
+    final long[] result = new long[2 * (last_row - first_row + 1)];
+    for (int row = first_row; row <= last_row; row++) {
+      final long row_base = (long) row << COLUMN_BITS;
+      result[2 * (row - first_row)] = row_base | first_column;
+      result[2 * (row - first_row) + 1] = row_base | last_column;
+    }
+    return result;
+  }
+
+  /**
+   * @return The distance in meters between two points, treating the earth as
+   *         flat around them. That's within a fraction of a percent over the
+   *         span of a city, and much cheaper than Location.distanceBetween().
+   */
+  public static double distanceMeters(double lat1, double lon1, double lat2,
+      double lon2) {
+    final double lon_scale = Math.cos(Math.toRadians((lat1 + lat2) / 2));
+    final double dlat = lat2 - lat1;
+    final double dlon = (lon2 - lon1) * lon_scale;
+    return Math.sqrt(dlat * dlat + dlon * dlon) * METERS_PER_DEGREE;
+  }
+}
@@ -0,0 +1,112 @@
+package info.yasskin.droidmuni;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A process-wide table of canonical copies of the route, direction, stop and
+ * block tags that NextBus repeats in every response. Predictions and cursors
+ * that hold tags for minutes at a time then share one String per tag instead
+ * of one per poll.
+ *
+ * The table is direct-mapped, like a CPU cache: each tag can live in only one
+ * slot, and a new tag evicts whatever was there. That bounds its size, keeps
+ * lookups to one probe, and needs no locking, since Strings are immutable and
+ * losing a race only costs a duplicate.
+ */
+public final class TagInterner {
+  /** A power of two comfortably larger than sf-muni's working set of tags. */
+  private static final int SLOTS = 2048;
+
+  private static final AtomicReferenceArray<String> s_table =
+      new AtomicReferenceArray<String>(SLOTS);
+  private static volatile boolean s_enabled = true;
+
+  private TagInterner() {
+  }
+
+  /**
+   * @return A String equal to 'tag', usually the one returned for the last
+   *         equal tag. Passes null through.
+   */
+  public static String intern(String tag) {
+    if (tag == null || !s_enabled) {
+      return tag;
+    }
+    int hash = tag.hashCode();
+    // Spread the high bits down since we only use the low ones.
+    hash ^= (hash >>> 16);
+    final int slot = hash & (SLOTS - 1);
+    final String existing = s_table.get(slot);
+    if (existing != null && existing.equals(tag)) {
+      return existing;
+    }
+    s_table.set(slot, tag);
+    return tag;
+  }
+
+  /**
+   * Like intern(new String(ascii, start, end - start)), but only allocates
+   * the String when the table doesn't already hold it.
+   *
+   * @param ascii
+   *          Must hold only ASCII between 'start' and 'end'.
+   */
+  public static String intern(byte[] ascii, int start, int end) {
+    // The same hash String.hashCode() computes, so both overloads agree on
+    // slots.
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + ascii[i];
+    }
+    if (s_enabled) {
+      hash ^= (hash >>> 16);
+      final int slot = hash & (SLOTS - 1);
+      final String existing = s_table.get(slot);
+      if (existing != null && equalsAscii(existing, ascii, start, end)) {
+        return existing;
+      }
+      final String tag = asciiString(ascii, start, end);
+      s_table.set(slot, tag);
+      return tag;
+    }
+    return asciiString(ascii, start, end);
+  }
+
+  private static boolean equalsAscii(String string, byte[] ascii, int start,
+      int end) {
+    if (string.length() != end - start) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (string.charAt(i - start) != ascii[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String asciiString(byte[] ascii, int start, int end) {
+    final char[] chars = new char[end - start];
+    for (int i = start; i < end; i++) {
+      chars[i - start] = (char) ascii[i];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Turns interning off, making intern() return its argument, or back on. For
+   * measuring what interning saves.
+   */
+  public static void setEnabled(boolean enabled) {
+    s_enabled = enabled;
+  }
+
+  /**
+   * Empties the table.
+   */
+  public static void clear() {
+    for (int i = 0; i < SLOTS; i++) {
+      s_table.set(i, null);
+    }
+  }
+}
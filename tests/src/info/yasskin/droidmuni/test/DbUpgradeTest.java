@@ -0,0 +1,166 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.NextMuniProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+/**
+ * Opens a NextMuniProvider over a database left by an older version of the
+ * app, named by the test, and checks that it's upgraded to a working one.
+ */
+public class DbUpgradeTest extends ProviderTestCase2<NextMuniProvider> {
+  public DbUpgradeTest() {
+    super(NextMuniProvider.class, NextMuniProvider.AUTHORITY);
+  }
+
+  /** The tables of the database as the original release created it. */
+  private static final String[] VERSION_3_SCHEMA = {
+      "CREATE TABLE RoutesUpdated (last_update INTEGER)",
+      "CREATE TABLE Routes (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+          + "tag TEXT UNIQUE,upstream_index INTEGER,description TEXT,"
+          + "last_direction_update_ms INTEGER DEFAULT 0)",
+      "CREATE TABLE Directions (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+          + "route_id INTEGER REFERENCES Routes(_id),tag TEXT,title TEXT,"
+          + "name TEXT,use_for_ui INTEGER,UNIQUE(route_id, tag))",
+      "CREATE TABLE Stops (_id INTEGER PRIMARY KEY,tag INTEGER,title TEXT,"
+          + "latitude DOUBLE,longitude DOUBLE)",
+      "CREATE TABLE DirectionStops ("
+          + "direction INTEGER REFERENCES Directions(_id),"
+          + "stop INTEGER REFERENCES Stops(_id),stop_order INTEGER,"
+          + "UNIQUE(direction, stop_order))" };
+
+  /** The tables just before stops were indexed by grid cell. */
+  private static final String[] VERSION_7_SCHEMA = {
+      "CREATE TABLE RoutesUpdated (last_update INTEGER)",
+      "CREATE TABLE Routes (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+          + "tag TEXT UNIQUE,upstream_index INTEGER,description TEXT,"
+          + "last_direction_update_ms INTEGER DEFAULT 0,config_digest BLOB)",
+      "CREATE TABLE Directions (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+          + "route_id INTEGER REFERENCES Routes(_id),tag TEXT,title TEXT,"
+          + "name TEXT,use_for_ui INTEGER,UNIQUE(route_id, tag))",
+      "CREATE TABLE Stops (_id INTEGER PRIMARY KEY,tag INTEGER,title TEXT,"
+          + "latitude DOUBLE,longitude DOUBLE)",
+      "CREATE TABLE DirectionStops ("
+          + "direction INTEGER REFERENCES Directions(_id),"
+          + "stop INTEGER REFERENCES Stops(_id),stop_order INTEGER,"
+          + "UNIQUE(direction, stop_order))",
+      "CREATE TABLE HttpValidators (uri TEXT PRIMARY KEY,etag TEXT,"
+          + "last_modified TEXT)",
+      "CREATE TABLE RoutePaths (route_id INTEGER REFERENCES Routes(_id),"
+          + "path_index INTEGER,points BLOB,UNIQUE(route_id, path_index))",
+      "CREATE TABLE StopRoutes (direction INTEGER REFERENCES Directions(_id),"
+          + "stop_order INTEGER,stop INTEGER REFERENCES Stops(_id),"
+          + "route_tag TEXT,direction_tag TEXT,UNIQUE(direction, stop_order))",
+      "CREATE INDEX StopRoutesByStop ON StopRoutes"
+          + " (stop, route_tag, direction_tag, stop_order)" };
+
+  private FakeNextBusServer m_server;
+
+  private int oldVersion() {
+    return Integer.parseInt(getName().substring(
+        "testUpgradeFromVersion".length()));
+  }
+
+  private static String[] schema(int version) {
+    switch (version) {
+    case 3:
+      return VERSION_3_SCHEMA;
+    case 7:
+      return VERSION_7_SCHEMA;
+    default:
+      throw new IllegalArgumentException("No schema for version " + version);
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    m_server = new FakeNextBusServer();
+    NextMuniProvider.setFeedUri(m_server.getFeedUri());
+
+    // The provider opens its database as soon as it's created, so the old
+    // one has to be in place before super.setUp(). ProviderTestCase2's
+    // context prefixes the provider's file names with "test.".
+    getContext().deleteDatabase("test.NextMUNIDb");
+    final SQLiteDatabase old =
+        getContext().openOrCreateDatabase("test.NextMUNIDb", 0, null);
+    try {
+      for (String sql : schema(oldVersion())) {
+        old.execSQL(sql);
+      }
+      // A fresh route with a direction the current feed doesn't have, which
+      // only survives if the upgrade keeps the old tables.
+      old.execSQL("INSERT INTO RoutesUpdated VALUES (?)",
+          new Object[] { System.currentTimeMillis() });
+      old.execSQL("INSERT INTO Routes (_id, tag, upstream_index, description,"
+                  + " last_direction_update_ms)"
+                  + " VALUES (1, '71', 0, '71-Haight-Noriega', ?)",
+          new Object[] { System.currentTimeMillis() });
+      old.execSQL("INSERT INTO Directions (route_id, tag, title, name,"
+                  + " use_for_ui) VALUES (1, '71__OLD', 'Old', 'Old', 1)");
+      old.setVersion(oldVersion());
+    } finally {
+      old.close();
+    }
+
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    NextMuniProvider.setFeedUri(null);
+    m_server.shutdown();
+  }
+
+  private Cursor query(Uri uri) {
+    return getMockContentResolver().query(uri, null, null, null, null);
+  }
+
+  private void assertUpgraded() {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    try {
+      assertEquals(4, routes.getCount());
+    } finally {
+      routes.close();
+    }
+
+    Cursor directions =
+        query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+    assertNotNull(directions);
+    try {
+      // The 71's inbound and outbound from the feed, not the old row.
+      assertEquals(2, directions.getCount());
+    } finally {
+      directions.close();
+    }
+
+    final SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      assertTrue(tables.getVersion() > oldVersion());
+    } finally {
+      tables.close();
+    }
+  }
+
+  public void testUpgradeFromVersion3() throws Exception {
+    assertUpgraded();
+  }
+
+  public void testUpgradeFromVersion7() throws Exception {
+    assertUpgraded();
+    // The grid cells the previous version didn't have.
+    Cursor nearby =
+        query(NextMuniProvider.buildNearbyStopsUri(37.7692, -122.4531, 100,
+            10));
+    assertNotNull(nearby);
+    try {
+      assertEquals(1, nearby.getCount());
+    } finally {
+      nearby.close();
+    }
+  }
+}
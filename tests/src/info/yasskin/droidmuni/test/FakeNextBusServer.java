@@ -0,0 +1,421 @@
+package info.yasskin.droidmuni.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * A local HTTP/1.1 stand-in for the NextBus XML feed. Serves the documents in
+ * NextBusFixtures for the routeList, routeConfig, predictions and
+ * predictionsForMultiStops commands, with a configurable Profile of latency,
+ * bandwidth, and failures. Supports keep-alive, gzip, and ETag revalidation so
+ * the provider's HTTP behavior can be measured, and counts what it serves.
+ *
+ * Point a NextMuniProvider at it with
+ * NextMuniProvider.setFeedUri(server.getFeedUri()).
+ */
+public class FakeNextBusServer {
+  /**
+   * How the server should misbehave. Rates are probabilities between 0 and 1,
+   * decided independently for each request.
+   */
+  public static class Profile {
+    /** Delay before each response starts. */
+    public long latency_ms = 0;
+    /** Throughput limit for response bodies, or 0 for unlimited. */
+    public int bytes_per_second = 0;
+    /** Answer with a shouldRetry="true" <Error> document. */
+    public double retry_error_rate = 0;
+    /** Answer with an HTTP 503. */
+    public double http_error_rate = 0;
+    /** Send half the body and then close the connection. */
+    public double truncation_rate = 0;
+    /** Honor Accept-Encoding: gzip. */
+    public boolean gzip = true;
+    /**
+     * Send predictions whose epochTime isn't a number, which the parser
+     * throws on.
+     */
+    public boolean malformed_predictions = false;
+    /**
+     * Answer routeConfig for every route in the route list, with a new
+     * version of the route each time, instead of only the 71's fixed one.
+     */
+    public boolean changing_route_configs = false;
+  }
+
+  private final ServerSocket m_server_socket;
+  private final Thread m_accept_thread;
+  private final Random m_random = new Random(42);
+  private volatile Profile m_profile = new Profile();
+  private volatile boolean m_stopped = false;
+
+  // All guarded by this.
+  private final Map<String, Integer> m_requests_by_command =
+      new HashMap<String, Integer>();
+  private final Map<String, Integer> m_in_flight_by_command =
+      new HashMap<String, Integer>();
+  private final Map<String, Integer> m_max_in_flight_by_command =
+      new HashMap<String, Integer>();
+  private int m_not_modified_count = 0;
+  private long m_body_bytes_sent = 0;
+  private int m_route_config_version = 0;
+  private final List<Socket> m_open_sockets = new ArrayList<Socket>();
+
+  public FakeNextBusServer() throws IOException {
+    m_server_socket =
+        new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    m_accept_thread = new Thread(new Runnable() {
+      public void run() {
+        acceptLoop();
+      }
+    }, "FakeNextBusServer-accept");
+    m_accept_thread.start();
+  }
+
+  public Uri getFeedUri() {
+    return Uri.parse("http://127.0.0.1:" + m_server_socket.getLocalPort()
+                     + "/service/publicXMLFeed");
+  }
+
+  public void setProfile(Profile profile) {
+    m_profile = profile;
+  }
+
+  public synchronized int getRequestCount(String command) {
+    Integer count = m_requests_by_command.get(command);
+    return count == null ? 0 : count;
+  }
+
+  public synchronized Map<String, Integer> getRequestCounts() {
+    return Collections.unmodifiableMap(new HashMap<String, Integer>(
+        m_requests_by_command));
+  }
+
+  /**
+   * @return The number of requests with 'command' being answered right now.
+   */
+  public synchronized int getRequestsInFlight(String command) {
+    Integer count = m_in_flight_by_command.get(command);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * @return The most requests with 'command' that were being answered at once.
+   */
+  public synchronized int getMaxConcurrentRequests(String command) {
+    Integer count = m_max_in_flight_by_command.get(command);
+    return count == null ? 0 : count;
+  }
+
+  public synchronized int getNotModifiedCount() {
+    return m_not_modified_count;
+  }
+
+  /**
+   * @return The number of response body bytes written, after compression.
+   */
+  public synchronized long getBodyBytesSent() {
+    return m_body_bytes_sent;
+  }
+
+  public synchronized void resetCounters() {
+    m_requests_by_command.clear();
+    m_max_in_flight_by_command.clear();
+    m_not_modified_count = 0;
+    m_body_bytes_sent = 0;
+  }
+
+  public void shutdown() throws InterruptedException {
+    m_stopped = true;
+    try {
+      m_server_socket.close();
+    } catch (IOException e) {
+      // Closing anyway.
+    }
+    synchronized (this) {
+      for (Socket socket : m_open_sockets) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // Closing anyway.
+        }
+      }
+    }
+    m_accept_thread.join();
+  }
+
+  private void acceptLoop() {
+    while (!m_stopped) {
+      final Socket socket;
+      try {
+        socket = m_server_socket.accept();
+      } catch (IOException e) {
+        if (!m_stopped) {
+          Log.e("FakeNextBusServer", "accept failed", e);
+        }
+        return;
+      }
+      synchronized (this) {
+        m_open_sockets.add(socket);
+      }
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            serveConnection(socket);
+          } catch (SocketException e) {
+            // The client or shutdown() closed the connection.
+          } catch (IOException e) {
+            Log.w("FakeNextBusServer", "connection failed", e);
+          } finally {
+            try {
+              socket.close();
+            } catch (IOException e) {
+              // Closing anyway.
+            }
+            synchronized (FakeNextBusServer.this) {
+              m_open_sockets.remove(socket);
+            }
+          }
+        }
+      }, "FakeNextBusServer-connection").start();
+    }
+  }
+
+  /**
+   * Serves requests on 'socket' until the client closes it or a response
+   * requires closing it.
+   */
+  private void serveConnection(Socket socket) throws IOException {
+    final InputStream in = socket.getInputStream();
+    final OutputStream out = socket.getOutputStream();
+    while (!m_stopped) {
+      final String request_line = readLine(in);
+      if (request_line == null) {
+        return;
+      }
+      final Map<String, String> headers = new HashMap<String, String>();
+      String header;
+      while ((header = readLine(in)) != null && header.length() > 0) {
+        final int colon = header.indexOf(':');
+        if (colon > 0) {
+          headers.put(header.substring(0, colon).trim().toLowerCase(),
+              header.substring(colon + 1).trim());
+        }
+      }
+      final String[] parts = request_line.split(" ");
+      if (parts.length < 2) {
+        return;
+      }
+      if (!respond(Uri.parse(parts[1]), headers, out)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Writes one response.
+   *
+   * @return false if the connection must be closed afterward.
+   */
+  private boolean respond(Uri request, Map<String, String> headers,
+      OutputStream out) throws IOException {
+    final Profile profile = m_profile;
+    String command = request.getQueryParameter("command");
+    if (command == null) {
+      command = "";
+    }
+    synchronized (this) {
+      Integer count = m_requests_by_command.get(command);
+      m_requests_by_command.put(command, count == null ? 1 : count + 1);
+      count = m_in_flight_by_command.get(command);
+      final int in_flight = count == null ? 1 : count + 1;
+      m_in_flight_by_command.put(command, in_flight);
+      count = m_max_in_flight_by_command.get(command);
+      if (count == null || count < in_flight) {
+        m_max_in_flight_by_command.put(command, in_flight);
+      }
+    }
+    try {
+      return writeResponse(command, request, headers, out, profile);
+    } finally {
+      synchronized (this) {
+        m_in_flight_by_command.put(command,
+            m_in_flight_by_command.get(command) - 1);
+      }
+    }
+  }
+
+  private boolean writeResponse(String command, Uri request,
+      Map<String, String> headers, OutputStream out, Profile profile)
+      throws IOException {
+    sleep(profile.latency_ms);
+
+    final double http_error_roll;
+    final double retry_error_roll;
+    final double truncation_roll;
+    synchronized (m_random) {
+      http_error_roll = m_random.nextDouble();
+      retry_error_roll = m_random.nextDouble();
+      truncation_roll = m_random.nextDouble();
+    }
+    if (http_error_roll < profile.http_error_rate) {
+      writeHead(out, "503 Service Unavailable", 0, null, null);
+      return true;
+    }
+
+    final long now = System.currentTimeMillis();
+    String body;
+    boolean cacheable = false;
+    if (retry_error_roll < profile.retry_error_rate) {
+      body = NextBusFixtures.RETRY_ERROR;
+    } else if ("routeList".equals(command)) {
+      body = NextBusFixtures.ROUTE_LIST;
+      cacheable = true;
+    } else if ("routeConfig".equals(command)
+               && profile.changing_route_configs) {
+      final int version;
+      synchronized (this) {
+        version = ++m_route_config_version;
+      }
+      body =
+          NextBusFixtures.routeConfig(request.getQueryParameter("r"), version);
+      cacheable = true;
+    } else if ("routeConfig".equals(command)
+               && "71".equals(request.getQueryParameter("r"))) {
+      body = NextBusFixtures.ROUTE_CONFIG_71;
+      cacheable = true;
+    } else if ("predictions".equals(command)) {
+      body =
+          NextBusFixtures.predictions(request.getQueryParameter("stopId"), now);
+    } else if ("predictionsForMultiStops".equals(command)) {
+      body =
+          NextBusFixtures.multiPredictions(
+              request.getQueryParameters("stops"), now);
+    } else {
+      body = NextBusFixtures.FATAL_ERROR;
+    }
+
+    if (profile.malformed_predictions && command.startsWith("predictions")) {
+      body = body.replace("epochTime=\"", "epochTime=\"soon");
+    }
+
+    String etag = null;
+    if (cacheable) {
+      etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+      if (etag.equals(headers.get("if-none-match"))) {
+        synchronized (this) {
+          m_not_modified_count++;
+        }
+        writeHead(out, "304 Not Modified", -1, etag, null);
+        return true;
+      }
+    }
+
+    byte[] bytes = body.getBytes("UTF-8");
+    String encoding = null;
+    final String accept_encoding = headers.get("accept-encoding");
+    if (profile.gzip && accept_encoding != null
+        && accept_encoding.contains("gzip")) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+      gzip.write(bytes);
+      gzip.close();
+      bytes = compressed.toByteArray();
+      encoding = "gzip";
+    }
+
+    writeHead(out, "200 OK", bytes.length, etag, encoding);
+    if (truncation_roll < profile.truncation_rate) {
+      writeBody(out, bytes, bytes.length / 2, profile);
+      out.flush();
+      return false;
+    }
+    writeBody(out, bytes, bytes.length, profile);
+    out.flush();
+    return true;
+  }
+
+  private static void writeHead(OutputStream out, String status,
+      int content_length, String etag, String content_encoding)
+      throws IOException {
+    StringBuilder head = new StringBuilder();
+    head.append("HTTP/1.1 ").append(status).append("\r\n");
+    head.append("Content-Type: text/xml; charset=utf-8\r\n");
+    if (content_length >= 0) {
+      head.append("Content-Length: ").append(content_length).append("\r\n");
+    }
+    if (etag != null) {
+      head.append("ETag: ").append(etag).append("\r\n");
+    }
+    if (content_encoding != null) {
+      head.append("Content-Encoding: ").append(content_encoding).append("\r\n");
+    }
+    head.append("\r\n");
+    out.write(head.toString().getBytes("US-ASCII"));
+  }
+
+  private void writeBody(OutputStream out, byte[] bytes, int length,
+      Profile profile) throws IOException {
+    final int CHUNK = 1024;
+    for (int offset = 0; offset < length; offset += CHUNK) {
+      final int count = Math.min(CHUNK, length - offset);
+      out.write(bytes, offset, count);
+      synchronized (this) {
+        m_body_bytes_sent += count;
+      }
+      if (profile.bytes_per_second > 0) {
+        out.flush();
+        sleep(count * 1000L / profile.bytes_per_second);
+      }
+    }
+  }
+
+  private static void sleep(long ms) {
+    if (ms <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return The next CRLF- or LF-terminated line, without the terminator, or
+   *         null at end of stream.
+   */
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    while (true) {
+      final int c = in.read();
+      if (c == -1) {
+        return line.length() == 0 ? null : line.toString();
+      }
+      if (c == '\n') {
+        final int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+          line.setLength(length - 1);
+        }
+        return line.toString();
+      }
+      line.append((char) c);
+    }
+  }
+}
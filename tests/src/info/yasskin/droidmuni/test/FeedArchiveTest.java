@@ -0,0 +1,120 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.FeedArchive;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+public class FeedArchiveTest extends TestCase {
+  private static final String ROUTE_LIST_URI =
+      "http://webservices.nextbus.com/service/publicXMLFeed"
+          + "?command=routeList&a=sf-muni";
+  private static final String PREDICTIONS_URI =
+      "http://webservices.nextbus.com/service/publicXMLFeed"
+          + "?command=predictions&a=sf-muni&stopId=14016";
+
+  private File m_file;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_file = File.createTempFile("feed", ".archive");
+    m_file.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    m_file.delete();
+    super.tearDown();
+  }
+
+  public void testReplaysRecordingsInOrderThenRepeatsTheLast()
+      throws Exception {
+    FeedArchive recorder = FeedArchive.openForRecording(m_file);
+    recorder.record(ROUTE_LIST_URI, 1000, "first".getBytes("UTF-8"));
+    recorder.record(PREDICTIONS_URI, 1500, "other".getBytes("UTF-8"));
+    recorder.record(ROUTE_LIST_URI, 2000, "second".getBytes("UTF-8"));
+    recorder.close();
+
+    FeedArchive replayer = FeedArchive.openForReplay(m_file);
+    try {
+      assertEquals(FeedArchive.Mode.REPLAY, replayer.getMode());
+      assertEquals("first", new String(replayer.replay(ROUTE_LIST_URI),
+          "UTF-8"));
+      assertEquals("second", new String(replayer.replay(ROUTE_LIST_URI),
+          "UTF-8"));
+      assertEquals("second", new String(replayer.replay(ROUTE_LIST_URI),
+          "UTF-8"));
+      assertNull(replayer.replay(ROUTE_LIST_URI + "&r=71"));
+    } finally {
+      replayer.close();
+    }
+  }
+
+  public void testReopeningForRecordingAppends() throws Exception {
+    FeedArchive recorder = FeedArchive.openForRecording(m_file);
+    recorder.record(ROUTE_LIST_URI, 1000, "first".getBytes("UTF-8"));
+    recorder.close();
+    recorder = FeedArchive.openForRecording(m_file);
+    recorder.record(ROUTE_LIST_URI, 2000, "second".getBytes("UTF-8"));
+    recorder.close();
+
+    FeedArchive replayer = FeedArchive.openForReplay(m_file);
+    try {
+      assertEquals("first", new String(replayer.replay(ROUTE_LIST_URI),
+          "UTF-8"));
+      assertEquals("second", new String(replayer.replay(ROUTE_LIST_URI),
+          "UTF-8"));
+    } finally {
+      replayer.close();
+    }
+  }
+
+  public void testReplayShiftsPredictionsIntoTheFuture() throws Exception {
+    final long recorded_ms = System.currentTimeMillis() - 3600 * 1000;
+    FeedArchive recorder = FeedArchive.openForRecording(m_file);
+    recorder.record(PREDICTIONS_URI, recorded_ms, NextBusFixtures.predictions(
+        "4016", recorded_ms).getBytes("UTF-8"));
+    recorder.close();
+
+    final long replay_start_ms = System.currentTimeMillis();
+    FeedArchive replayer = FeedArchive.openForReplay(m_file);
+    try {
+      String body = new String(replayer.replay(PREDICTIONS_URI), "UTF-8");
+      Matcher epoch_times =
+          Pattern.compile("epochTime=\"(\\d+)\"").matcher(body);
+      int count = 0;
+      while (epoch_times.find()) {
+        assertTrue(Long.parseLong(epoch_times.group(1)) > replay_start_ms);
+        count++;
+      }
+      assertEquals(5, count);
+    } finally {
+      replayer.close();
+    }
+  }
+
+  public void testReplayRequiresAnArchive() throws Exception {
+    try {
+      FeedArchive.openForReplay(m_file);
+      fail("Opened a missing archive");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  public void testReplayRejectsAnEmptyFile() throws Exception {
+    assertTrue(m_file.createNewFile());
+    try {
+      FeedArchive.openForReplay(m_file);
+      fail("Opened an empty archive");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("empty archive"));
+    }
+    assertEquals(0, m_file.length());
+  }
+}
@@ -0,0 +1,173 @@
+package info.yasskin.droidmuni.test;
+
+import java.util.Locale;
+
+/**
+ * Canned NextBus feed documents, trimmed from real sf-muni responses, for
+ * FakeNextBusServer to serve.
+ */
+public class NextBusFixtures {
+  private static final String COPYRIGHT =
+      "All data copyright San Francisco Muni 2011.";
+
+  public static final String ROUTE_LIST =
+      "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+          + "<body copyright=\"" + COPYRIGHT + "\">\n"
+          + "<route tag=\"6\" title=\"6-Parnassus\"/>\n"
+          + "<route tag=\"24\" title=\"24-Divisadero\"/>\n"
+          + "<route tag=\"38\" title=\"38-Geary\"/>\n"
+          + "<route tag=\"71\" title=\"71-Haight-Noriega\"/>\n" + "</body>\n";
+
+  /**
+   * A cut-down routeConfig for the 71, including a <path> so that parsers have
+   * to skip or handle it.
+   */
+  public static final String ROUTE_CONFIG_71 =
+      "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+          + "<body copyright=\"" + COPYRIGHT + "\">\n"
+          + "<route tag=\"71\" title=\"71-Haight-Noriega\" color=\"667744\""
+          + " oppositeColor=\"ffffff\" latMin=\"37.7532\" latMax=\"37.7948\""
+          + " lonMin=\"-122.5081\" lonMax=\"-122.3938\">\n"
+          + "<stop tag=\"4016\" title=\"Haight St &amp; Stanyan St\""
+          + " lat=\"37.7692\" lon=\"-122.4531\" stopId=\"14016\"/>\n"
+          + "<stop tag=\"4017\" title=\"Haight St &amp; Clayton St\""
+          + " lat=\"37.7697\" lon=\"-122.4491\" stopId=\"14017\"/>\n"
+          + "<stop tag=\"4018\" title=\"Haight St &amp; Masonic Ave\""
+          + " lat=\"37.7703\" lon=\"-122.4453\" stopId=\"14018\"/>\n"
+          + "<stop tag=\"4019\" title=\"Haight St &amp; Divisadero St\""
+          + " lat=\"37.7714\" lon=\"-122.4372\" stopId=\"14019\"/>\n"
+          + "<stop tag=\"5700\" title=\"Market St &amp; Van Ness Ave\""
+          + " lat=\"37.7751\" lon=\"-122.4193\" stopId=\"15700\"/>\n"
+          + "<direction tag=\"71__IB1\" title=\"Inbound to Ferry Plaza\""
+          + " name=\"Inbound\" useForUI=\"true\">\n"
+          + "<stop tag=\"4016\" />\n" + "<stop tag=\"4017\" />\n"
+          + "<stop tag=\"4018\" />\n" + "<stop tag=\"4019\" />\n"
+          + "<stop tag=\"5700\" />\n" + "</direction>\n"
+          + "<direction tag=\"71__OB1\" title=\"Outbound to 48th Avenue\""
+          + " name=\"Outbound\" useForUI=\"true\">\n"
+          + "<stop tag=\"5700\" />\n" + "<stop tag=\"4019\" />\n"
+          + "<stop tag=\"4018\" />\n" + "</direction>\n" + "<path>\n"
+          + "<point lat=\"37.7692\" lon=\"-122.4531\"/>\n"
+          + "<point lat=\"37.7697\" lon=\"-122.4491\"/>\n"
+          + "<point lat=\"37.7703\" lon=\"-122.4453\"/>\n" + "</path>\n"
+          + "<path>\n" + "<point lat=\"37.7714\" lon=\"-122.4372\"/>\n"
+          + "<point lat=\"37.7751\" lon=\"-122.4193\"/>\n" + "</path>\n"
+          + "</route>\n" + "</body>\n";
+
+  /**
+   * @return A routeConfig for any route in ROUTE_LIST, with a dozen stops, two
+   *         directions, and a path. The stop and direction titles and the stop
+   *         locations change with 'version', so each version has to be
+   *         written over the last one.
+   */
+  public static String routeConfig(String route_tag, int version) {
+    final int first_stop = Integer.parseInt(route_tag) * 100;
+    final double lat = 37.75 + Integer.parseInt(route_tag) * 0.0005;
+    final double drift = (version % 10) * 0.00001;
+    StringBuilder stops = new StringBuilder();
+    StringBuilder inbound = new StringBuilder();
+    StringBuilder outbound = new StringBuilder();
+    StringBuilder path = new StringBuilder();
+    for (int i = 0; i < 12; i++) {
+      final int tag = first_stop + i;
+      final String stop_lat =
+          String.format(Locale.US, "%.5f", lat + i * 0.001 + drift);
+      final String stop_lon =
+          String.format(Locale.US, "%.5f", -122.45 + i * 0.002);
+      stops.append("<stop tag=\"" + tag + "\" title=\"Stop " + i + " v"
+                   + version + "\" lat=\"" + stop_lat + "\" lon=\""
+                   + stop_lon + "\" stopId=\"1" + tag + "\"/>\n");
+      inbound.append("<stop tag=\"" + tag + "\" />\n");
+      outbound.insert(0, "<stop tag=\"" + tag + "\" />\n");
+      path.append("<point lat=\"" + stop_lat + "\" lon=\"" + stop_lon
+                  + "\"/>\n");
+    }
+    return "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+           + "<body copyright=\"" + COPYRIGHT + "\">\n"
+           + "<route tag=\"" + route_tag + "\" title=\"" + route_tag
+           + "\" color=\"667744\" oppositeColor=\"ffffff\">\n" + stops
+           + "<direction tag=\"" + route_tag + "__IB1\" title=\"Inbound v"
+           + version + "\" name=\"Inbound\" useForUI=\"true\">\n"
+           + inbound + "</direction>\n"
+           + "<direction tag=\"" + route_tag + "__OB1\" title=\"Outbound v"
+           + version + "\" name=\"Outbound\" useForUI=\"true\">\n"
+           + outbound + "</direction>\n" + "<path>\n" + path + "</path>\n"
+           + "</route>\n" + "</body>\n";
+  }
+
+  public static final String RETRY_ERROR =
+      "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+          + "<Error shouldRetry=\"true\">\n"
+          + "  Agency server cannot accept client while status is: loading\n"
+          + "</Error>\n";
+
+  public static final String FATAL_ERROR =
+      "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+          + "<Error shouldRetry=\"false\">\n"
+          + "  Could not get stop \"99999\" for agency \"sf-muni\"\n"
+          + "</Error>\n";
+
+  /**
+   * @return A predictions document for one stop served by the 71 and the 6,
+   *         with arrivals a few minutes after 'now_ms'. Like NextBus, each
+   *         <direction> block is already in time order.
+   */
+  public static String predictions(String stop_tag, long now_ms) {
+    return "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+           + "<body copyright=\"" + COPYRIGHT + "\">\n"
+           + routePredictions("71", stop_tag, "71__IB1",
+               "Inbound to Ferry Plaza", now_ms, 3, 15, 31)
+           + routePredictions("6", stop_tag, "06_IB3",
+               "Inbound to Ferry Plaza", now_ms, 7, 19)
+           + "<predictions agencyTitle=\"San Francisco Muni\""
+           + " routeTitle=\"43-Masonic\" routeTag=\"43\""
+           + " stopTitle=\"Haight St &amp; Masonic Ave\" stopTag=\""
+           + stop_tag + "\""
+           + " dirTitleBecauseNoPredictions=\"Inbound to Fort Mason\">\n"
+           + "</predictions>\n" + "<keyForNextTime value=\"1234\" />\n"
+           + "</body>\n";
+  }
+
+  /**
+   * @return A predictionsForMultiStops document answering every "route|stop"
+   *         or "route||stop" pair in 'stops'.
+   */
+  public static String multiPredictions(Iterable<String> stops, long now_ms) {
+    StringBuilder result = new StringBuilder();
+    result.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
+    result.append("<body copyright=\"" + COPYRIGHT + "\">\n");
+    int i = 0;
+    for (String route_stop : stops) {
+      final int first = route_stop.indexOf('|');
+      final int last = route_stop.lastIndexOf('|');
+      final String route = route_stop.substring(0, first);
+      final String stop = route_stop.substring(last + 1);
+      result.append(routePredictions(route, stop, route + "__IB1",
+          "Inbound to Downtown", now_ms, 2 + i % 5, 12 + i % 7));
+      i++;
+    }
+    result.append("</body>\n");
+    return result.toString();
+  }
+
+  private static String routePredictions(String route_tag, String stop_tag,
+      String dir_tag, String dir_title, long now_ms, int... minutes) {
+    StringBuilder result = new StringBuilder();
+    result.append("<predictions agencyTitle=\"San Francisco Muni\""
+                  + " routeTitle=\"" + route_tag + "\" routeTag=\""
+                  + route_tag + "\" stopTitle=\"A stop\" stopTag=\""
+                  + stop_tag + "\">\n");
+    result.append("<direction title=\"" + dir_title + "\">\n");
+    for (int minute : minutes) {
+      final long epoch_time = now_ms + minute * 60000L;
+      result.append("<prediction epochTime=\"" + epoch_time + "\" seconds=\""
+                    + minute * 60 + "\" minutes=\"" + minute
+                    + "\" isDeparture=\"false\" dirTag=\"" + dir_tag
+                    + "\" block=\"" + route_tag + "06\" />\n");
+    }
+    result.append("</direction>\n");
+    result.append("<message text=\"No Elevator at Castro Station\"/>\n");
+    result.append("</predictions>\n");
+    return result.toString();
+  }
+}
@@ -0,0 +1,1088 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.NextMuniProvider;
+import info.yasskin.droidmuni.Polyline;
+import info.yasskin.droidmuni.StopGrid;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.location.Location;
+import android.net.Uri;
+import android.os.Debug;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+/**
+ * Runs a real NextMuniProvider against FakeNextBusServer.
+ */
+public class NextMuniProviderLoadTest extends
+    ProviderTestCase2<NextMuniProvider> {
+  public NextMuniProviderLoadTest() {
+    super(NextMuniProvider.class, NextMuniProvider.AUTHORITY);
+  }
+
+  private FakeNextBusServer m_server;
+
+  @Override
+  protected void setUp() throws Exception {
+    // The provider starts fetching routes in onCreate(), so the server has to
+    // be in place before super.setUp() creates it.
+    m_server = new FakeNextBusServer();
+    NextMuniProvider.setFeedUri(m_server.getFeedUri());
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    NextMuniProvider.setFeedUri(null);
+    m_server.shutdown();
+  }
+
+  private Cursor query(Uri uri) {
+    return getMockContentResolver().query(uri, null, null, null, null);
+  }
+
+  public void testConcurrentPredictionQueries() throws Exception {
+    FakeNextBusServer.Profile profile = new FakeNextBusServer.Profile();
+    profile.latency_ms = 100;
+    profile.bytes_per_second = 64 * 1024;
+    m_server.setProfile(profile);
+
+    List<Uri> uris = new ArrayList<Uri>();
+    for (int stop = 14016; stop < 14021; stop++) {
+      uris.add(Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI, ""
+                                                                      + stop));
+    }
+    ProviderLoadHarness.Report report =
+        new ProviderLoadHarness(getMockContentResolver()).run(uris, 8, 10);
+    Log.i("NextMuniProviderLoadTest", "Predictions: " + report + " requests: "
+                                      + m_server.getRequestCounts());
+
+    assertEquals(0, report.failures);
+    // Concurrent queries for a stop share a fetch, and later ones hit the
+    // cache, so the server should see far fewer requests than queries.
+    assertTrue(m_server.getRequestCount("predictions") <= 2 * uris.size());
+  }
+
+  public void testConcurrentQueriesShareOneFetch() throws Exception {
+    // Let the startup routes fetch finish so it isn't counted below.
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+    FakeNextBusServer.Profile profile = new FakeNextBusServer.Profile();
+    profile.latency_ms = 1000;
+    m_server.setProfile(profile);
+    final Uri stop =
+        Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI, "14016");
+    final long calls_before = getProvider().getRequestCount();
+    final long coalesced_before = getProvider().getCoalescedRequestCount();
+
+    final Thread[] queriers = new Thread[4];
+    for (int i = 0; i < queriers.length; i++) {
+      queriers[i] = new Thread() {
+        @Override
+        public void run() {
+          query(stop).close();
+        }
+      };
+      queriers[i].start();
+      if (i == 0) {
+        // The others start while the first one's request is in flight.
+        awaitRequests("predictions", 1);
+      }
+    }
+    for (Thread querier : queriers) {
+      querier.join();
+    }
+
+    assertEquals(1, m_server.getRequestCount("predictions"));
+    assertEquals(4, getProvider().getRequestCount() - calls_before);
+    assertEquals(3, getProvider().getCoalescedRequestCount()
+                    - coalesced_before);
+  }
+
+  public void testMultiStopPredictionsUseOneRequest() throws Exception {
+    String[] routes = { "71", "6", "71", "6", "43" };
+    String[] stops = { "4016", "4016", "4017", "4017", "4018" };
+    Cursor result =
+        query(NextMuniProvider.buildMultiPredictionsUri(routes, stops));
+    try {
+      assertNotNull(result);
+      assertEquals(10, result.getCount());
+      // Grouped by stop, in request order.
+      final int stop_index = result.getColumnIndexOrThrow("stop_tag");
+      result.moveToFirst();
+      assertEquals("4016", result.getString(stop_index));
+      result.moveToLast();
+      assertEquals("4018", result.getString(stop_index));
+    } finally {
+      result.close();
+    }
+    assertEquals(1, m_server.getRequestCount("predictionsForMultiStops"));
+  }
+
+  private static void assertTimeOrdered(Cursor predictions) {
+    final int time_index = predictions.getColumnIndexOrThrow("predicted_time");
+    long last = Long.MIN_VALUE;
+    for (predictions.moveToFirst(); !predictions.isAfterLast(); predictions.moveToNext()) {
+      assertTrue(predictions.getLong(time_index) >= last);
+      last = predictions.getLong(time_index);
+    }
+  }
+
+  public void testPredictionsAreMergedInTimeOrder() throws Exception {
+    final Uri stop =
+        Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI, "14016");
+    Cursor all = query(stop);
+    try {
+      assertNotNull(all);
+      // The 71's three arrivals interleaved with the 6's two.
+      assertEquals(5, all.getCount());
+      assertTimeOrdered(all);
+    } finally {
+      all.close();
+    }
+
+    Cursor first_two =
+        query(stop.buildUpon().appendQueryParameter(
+            NextMuniProvider.LIMIT_PARAMETER, "2").build());
+    try {
+      assertEquals(2, first_two.getCount());
+      assertTimeOrdered(first_two);
+    } finally {
+      first_two.close();
+    }
+  }
+
+  public void testCachedPredictionsMatchTheFetchedOnes() throws Exception {
+    final Uri stop =
+        Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI, "14016");
+    Cursor fetched = query(stop);
+    Cursor cached = query(stop);
+    try {
+      assertEquals(1, m_server.getRequestCount("predictions"));
+      assertEquals(5, fetched.getCount());
+      assertEquals(fetched.getCount(), cached.getCount());
+      assertEquals(Arrays.asList(fetched.getColumnNames()),
+          Arrays.asList(cached.getColumnNames()));
+      for (int row = 0; fetched.moveToPosition(row); row++) {
+        assertTrue(cached.moveToPosition(row));
+        for (int column = 0; column < fetched.getColumnCount(); column++) {
+          assertEquals(fetched.getString(column), cached.getString(column));
+        }
+      }
+    } finally {
+      fetched.close();
+      cached.close();
+    }
+  }
+
+  public void testCachedPredictionsExpire() throws Exception {
+    getProvider().setPredictionCacheTtl(200);
+    final Uri stop =
+        Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI, "14016");
+    query(stop).close();
+    query(stop).close();
+    assertEquals(1, m_server.getRequestCount("predictions"));
+
+    Thread.sleep(300);
+    query(stop).close();
+    assertEquals(2, m_server.getRequestCount("predictions"));
+  }
+
+  public void testMultiStopLimitAppliesPerStop() throws Exception {
+    String[] routes = { "71", "6", "71", "6", "43" };
+    String[] stops = { "4016", "4016", "4017", "4017", "4018" };
+    Cursor result =
+        query(NextMuniProvider.buildMultiPredictionsUri(routes, stops)
+            .buildUpon().appendQueryParameter(
+                NextMuniProvider.LIMIT_PARAMETER, "1").build());
+    try {
+      assertNotNull(result);
+      assertEquals(3, result.getCount());
+    } finally {
+      result.close();
+    }
+  }
+
+  public void testRouteConfigRevalidation() throws Exception {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+
+    m_server.resetCounters();
+    long cpu_begin = Debug.threadCpuTimeNanos();
+    Cursor directions =
+        query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+    final long full_cpu_ns = Debug.threadCpuTimeNanos() - cpu_begin;
+    assertNotNull(directions);
+    assertEquals(2, directions.getCount());
+    directions.close();
+    final long full_bytes = m_server.getBodyBytesSent();
+    assertEquals(1, m_server.getRequestCount("routeConfig"));
+    assertTrue(full_bytes > 0);
+
+    // Make the route's data a month old so the next query has to block on
+    // revalidating it.
+    SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      tables.execSQL("UPDATE Routes SET last_direction_update_ms = 1"
+                     + " WHERE tag == '71'");
+    } finally {
+      tables.close();
+    }
+    getProvider().invalidateRouteGraphs();
+
+    m_server.resetCounters();
+    cpu_begin = Debug.threadCpuTimeNanos();
+    directions =
+        query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+    final long revalidate_cpu_ns = Debug.threadCpuTimeNanos() - cpu_begin;
+    assertNotNull(directions);
+    assertEquals(2, directions.getCount());
+    directions.close();
+
+    assertEquals(1, m_server.getRequestCount("routeConfig"));
+    assertEquals(1, m_server.getNotModifiedCount());
+    assertEquals(0, m_server.getBodyBytesSent());
+    Log.i("NextMuniProviderLoadTest", "routeConfig: full fetch " + full_bytes
+                                      + " bytes, " + full_cpu_ns / 1000
+                                      + " us CPU; 304 revalidation 0 bytes, "
+                                      + revalidate_cpu_ns / 1000 + " us CPU");
+  }
+
+  private static int count(SQLiteDatabase tables, String table) {
+    Cursor rows = tables.rawQuery("SELECT COUNT(*) FROM " + table, null);
+    try {
+      rows.moveToFirst();
+      return rows.getInt(0);
+    } finally {
+      rows.close();
+    }
+  }
+
+  public void testRefreshingAnUnchangedRouteKeepsItsRows() throws Exception {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+    Cursor directions =
+        query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+    assertEquals(2, directions.getCount());
+    directions.close();
+
+    // Force a full refetch and reparse of the same routeConfig.
+    SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      tables.execSQL("UPDATE Routes SET last_direction_update_ms = 1,"
+                     + " config_digest = NULL WHERE tag == '71'");
+      tables.execSQL("DELETE FROM HttpValidators");
+      final long direction_id =
+          DatabaseUtils.longForQuery(tables,
+              "SELECT MIN(_id) FROM Directions", null);
+
+      getProvider().invalidateRouteGraphs();
+      m_server.resetCounters();
+      directions =
+          query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+      assertEquals(2, directions.getCount());
+      directions.close();
+      assertEquals(1, m_server.getRequestCount("routeConfig"));
+
+      assertEquals(5, count(tables, "Stops"));
+      assertEquals(2, count(tables, "Directions"));
+      assertEquals(8, count(tables, "DirectionStops"));
+      assertEquals(8, count(tables, "StopRoutes"));
+      assertEquals(2, count(tables, "RoutePaths"));
+      // Unchanged directions keep their _ids.
+      assertEquals(direction_id, DatabaseUtils.longForQuery(
+          tables, "SELECT MIN(_id) FROM Directions", null));
+    } finally {
+      tables.close();
+    }
+  }
+
+  public void testUnchangedRouteConfigIsNotRewritten() throws Exception {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+    Cursor directions =
+        query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+    assertEquals(2, directions.getCount());
+    directions.close();
+
+    SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      // Without validators, NextBus sends the whole routeConfig again, but
+      // it's the same one, so the stale title below should survive.
+      tables.execSQL("UPDATE Routes SET last_direction_update_ms = 1"
+                     + " WHERE tag == '71'");
+      tables.execSQL("DELETE FROM HttpValidators");
+      tables.execSQL("UPDATE Directions SET title = 'Stale'");
+
+      getProvider().invalidateRouteGraphs();
+      m_server.resetCounters();
+      final long stored = getProvider().getRouteConfigsStoredCount();
+      final long unchanged = getProvider().getRouteConfigsUnchangedCount();
+      directions =
+          query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+      assertEquals(2, directions.getCount());
+      directions.close();
+      assertEquals(stored, getProvider().getRouteConfigsStoredCount());
+      assertEquals(unchanged + 1,
+          getProvider().getRouteConfigsUnchangedCount());
+      assertEquals(2, count(tables, "Directions WHERE title == 'Stale'"));
+      assertEquals(1, m_server.getRequestCount("routeConfig"));
+      assertTrue(m_server.getBodyBytesSent() > 0);
+
+      assertTrue(DatabaseUtils.longForQuery(tables,
+          "SELECT last_direction_update_ms FROM Routes WHERE tag == '71'",
+          null) > 1);
+    } finally {
+      tables.close();
+    }
+  }
+
+  /**
+   * Waits up to five seconds for the server to see 'count' requests with
+   * 'command'.
+   */
+  private void awaitRequests(String command, int count) throws Exception {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (m_server.getRequestCount(command) < count) {
+      assertTrue("Timed out waiting for " + command,
+          System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  public void testStaleRoutesRefreshInParallel() throws Exception {
+    FakeNextBusServer.Profile profile = new FakeNextBusServer.Profile();
+    profile.changing_route_configs = true;
+    m_server.setProfile(profile);
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+    final Uri directions_71 =
+        Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71");
+    final Uri directions_6 =
+        Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "6");
+    query(directions_71).close();
+    query(directions_6).close();
+
+    final SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      // Two days old: stale enough to refresh in the background, but not so
+      // old that queries block on it.
+      final long stale_ms =
+          System.currentTimeMillis() - 2 * 24 * 3600 * 1000L;
+      tables.execSQL("UPDATE Routes SET last_direction_update_ms = ?"
+                     + " WHERE tag IN ('71', '6')", new Object[] { stale_ms });
+      getProvider().invalidateRouteGraphs();
+      // The latency only has to outlast the gap between queuing the
+      // refreshes, so that a lane that ran them one at a time would show.
+      profile = new FakeNextBusServer.Profile();
+      profile.latency_ms = 2000;
+      profile.changing_route_configs = true;
+      m_server.setProfile(profile);
+      m_server.resetCounters();
+
+      // Each query queues a refresh and returns the stale directions. The
+      // second refresh of the 71 shares the first one's fetch.
+      query(directions_71).close();
+      query(directions_6).close();
+      query(directions_71).close();
+
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (DatabaseUtils.longForQuery(tables,
+          "SELECT MIN(last_direction_update_ms) FROM Routes"
+              + " WHERE tag IN ('71', '6')", null) == stale_ms) {
+        assertTrue("Timed out waiting for the refreshes",
+            System.currentTimeMillis() < deadline);
+        Thread.sleep(10);
+      }
+      // Both routes were fetched at the same time...
+      assertEquals(2, m_server.getMaxConcurrentRequests("routeConfig"));
+      // ...and the 71 only once.
+      assertEquals(2, m_server.getRequestCount("routeConfig"));
+    } finally {
+      tables.close();
+      restoreRoute71();
+    }
+  }
+
+  public void testRefreshIsDroppedIfTheRouteChangesDuringIt()
+      throws Exception {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+    FakeNextBusServer.Profile profile = new FakeNextBusServer.Profile();
+    profile.latency_ms = 500;
+    m_server.setProfile(profile);
+    m_server.resetCounters();
+
+    // Our refresh blocks on the slow routeConfig fetch...
+    final Thread refresher = new Thread() {
+      @Override
+      public void run() {
+        Cursor directions =
+            query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+        if (directions != null) {
+          directions.close();
+        }
+      }
+    };
+    refresher.start();
+    awaitRequests("routeConfig", 1);
+
+    // ...while another writer refreshes the route and stamps it.
+    SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      tables.execSQL("INSERT INTO Directions (route_id, tag, title, name,"
+                     + " use_for_ui) SELECT _id, '71__OTHER', 'Other',"
+                     + " 'Other', 1 FROM Routes WHERE tag == '71'");
+      tables.execSQL("UPDATE Routes SET last_direction_update_ms = 12345"
+                     + " WHERE tag == '71'");
+      refresher.join();
+
+      // Ours lost the race, so it left the other writer's rows alone.
+      assertEquals(1, getProvider().getRouteRefreshesDroppedCount());
+      assertEquals(1, count(tables, "Directions"));
+      assertEquals(0, count(tables, "Stops"));
+      assertEquals(12345, DatabaseUtils.longForQuery(tables,
+          "SELECT last_direction_update_ms FROM Routes WHERE tag == '71'",
+          null));
+
+      // The other writer's stamp is old too, so the next query refreshes.
+      m_server.setProfile(new FakeNextBusServer.Profile());
+      getProvider().invalidateRouteGraphs();
+      Cursor directions =
+          query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+      assertEquals(2, directions.getCount());
+      directions.close();
+      assertEquals(1, getProvider().getRouteRefreshesDroppedCount());
+      assertEquals(5, count(tables, "Stops"));
+    } finally {
+      tables.close();
+    }
+  }
+
+  /**
+   * Compares how long route refreshes hold the write lock with how long they
+   * spend fetching and parsing. The old streaming refresh parsed inside its
+   * transaction, so it held the lock for both.
+   */
+  public void testRouteLockIsNotHeldDuringTheFetch() throws Exception {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+    FakeNextBusServer.Profile profile = new FakeNextBusServer.Profile();
+    profile.latency_ms = 2000;
+    m_server.setProfile(profile);
+    m_server.resetCounters();
+
+    final SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      makeRouteStale(tables, "71");
+      final Thread refresher = new Thread() {
+        @Override
+        public void run() {
+          query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"))
+              .close();
+        }
+      };
+      refresher.start();
+      awaitRequests("routeConfig", 1);
+
+      // If the refresh held a write transaction around its fetch, this
+      // write would wait for it, and so for the response.
+      tables.beginTransaction();
+      try {
+        tables.execSQL("UPDATE Routes SET upstream_index = upstream_index"
+                       + " WHERE tag == '71'");
+        tables.setTransactionSuccessful();
+      } finally {
+        tables.endTransaction();
+      }
+      assertEquals(1, m_server.getRequestsInFlight("routeConfig"));
+      refresher.join();
+    } finally {
+      tables.close();
+    }
+  }
+
+  public void testRouteLockHoldBenchmark() throws Exception {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+    FakeNextBusServer.Profile profile = new FakeNextBusServer.Profile();
+    profile.latency_ms = 200;
+    m_server.setProfile(profile);
+
+    final long[] lock_before = getProvider().getRouteLockStats();
+    final long[] fetch_before = getProvider().getRouteFetchStats();
+    final int REFRESHES = 5;
+    SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      for (int i = 0; i < REFRESHES; i++) {
+        // Make every refresh a full fetch, parse and apply.
+        makeRouteStale(tables, "71");
+        Cursor directions =
+            query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+        assertEquals(2, directions.getCount());
+        directions.close();
+      }
+    } finally {
+      tables.close();
+    }
+    final long[] lock_after = getProvider().getRouteLockStats();
+    final long[] fetch_after = getProvider().getRouteFetchStats();
+
+    assertEquals(REFRESHES, lock_after[0] - lock_before[0]);
+    assertEquals(REFRESHES, fetch_after[0] - fetch_before[0]);
+    final long lock_us = (lock_after[1] - lock_before[1]) / REFRESHES / 1000;
+    final long fetch_us =
+        (fetch_after[1] - fetch_before[1]) / REFRESHES / 1000;
+    Log.i("NextMuniProviderLoadTest", "Per route refresh: write lock held "
+                                      + lock_us + " us; streaming inside the"
+                                      + " transaction held it "
+                                      + (fetch_us + lock_us) + " us");
+  }
+
+  public void testStopsAreServedFromTheRouteGraph() throws Exception {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+    final Uri stops_uri =
+        NextMuniProvider.STOPS_URI.buildUpon().appendPath("71").appendPath(
+            "71__OB1").build();
+    Cursor stops = query(stops_uri);
+    assertEquals(3, stops.getCount());
+    stops.moveToFirst();
+    assertEquals(15700, stops.getLong(stops.getColumnIndexOrThrow("stop_id")));
+    assertEquals("Market St & Van Ness Ave", stops.getString(stops
+        .getColumnIndexOrThrow("title")));
+    assertEquals(37.7751, stops.getDouble(stops.getColumnIndexOrThrow("lat")),
+        1e-9);
+    stops.close();
+
+    SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      tables.execSQL("UPDATE Stops SET title = 'Renamed' WHERE _id == 15700");
+    } finally {
+      tables.close();
+    }
+    // The graph is still cached, so the database isn't consulted.
+    stops = query(stops_uri);
+    stops.moveToFirst();
+    assertEquals("Market St & Van Ness Ave", stops.getString(stops
+        .getColumnIndexOrThrow("title")));
+    stops.close();
+
+    getProvider().invalidateRouteGraphs();
+    stops = query(stops_uri);
+    stops.moveToFirst();
+    assertEquals("Renamed", stops.getString(stops
+        .getColumnIndexOrThrow("title")));
+    stops.close();
+  }
+
+  public void testStopRoutesFollowTheDirections() throws Exception {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+    assertNull(query(Uri.withAppendedPath(NextMuniProvider.STOP_ROUTES_URI,
+        "15700")));
+    Cursor directions =
+        query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+    assertEquals(2, directions.getCount());
+    directions.close();
+
+    Cursor stop_routes =
+        query(Uri.withAppendedPath(NextMuniProvider.STOP_ROUTES_URI, "15700"));
+    assertEquals(2, stop_routes.getCount());
+    final int route_tag = stop_routes.getColumnIndexOrThrow("route_tag");
+    final int direction_tag =
+        stop_routes.getColumnIndexOrThrow("direction_tag");
+    final int stop_order = stop_routes.getColumnIndexOrThrow("stop_order");
+    stop_routes.moveToFirst();
+    assertEquals("71", stop_routes.getString(route_tag));
+    assertEquals("71__IB1", stop_routes.getString(direction_tag));
+    assertEquals(4, stop_routes.getInt(stop_order));
+    stop_routes.moveToNext();
+    assertEquals("71__OB1", stop_routes.getString(direction_tag));
+    assertEquals(0, stop_routes.getInt(stop_order));
+    stop_routes.close();
+
+    SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      // A direction NextBus no longer sends, which the next refresh should
+      // delete along with its stops.
+      tables.execSQL("INSERT INTO Directions (_id, route_id, tag, title,"
+                     + " name, use_for_ui) SELECT 1000, _id, '71__OLD',"
+                     + " 'Old', 'Old', 1 FROM Routes WHERE tag == '71'");
+      tables.execSQL("INSERT INTO DirectionStops (direction, stop,"
+                     + " stop_order) VALUES (1000, 15700, 0)");
+      tables.execSQL("INSERT INTO StopRoutes (direction, stop_order, stop,"
+                     + " route_tag, direction_tag)"
+                     + " VALUES (1000, 0, 15700, '71', '71__OLD')");
+      tables.execSQL("UPDATE Routes SET last_direction_update_ms = 1,"
+                     + " config_digest = NULL WHERE tag == '71'");
+      tables.execSQL("DELETE FROM HttpValidators");
+
+      getProvider().invalidateRouteGraphs();
+      directions =
+          query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"));
+      assertEquals(2, directions.getCount());
+      directions.close();
+      assertEquals(8, count(tables, "StopRoutes"));
+    } finally {
+      tables.close();
+    }
+    stop_routes =
+        query(Uri.withAppendedPath(NextMuniProvider.STOP_ROUTES_URI, "15700"));
+    assertEquals(2, stop_routes.getCount());
+    stop_routes.close();
+    stop_routes =
+        query(Uri.withAppendedPath(NextMuniProvider.STOP_ROUTES_URI, "14016"));
+    assertEquals(1, stop_routes.getCount());
+    stop_routes.close();
+  }
+
+  /** Orders {distance_m, stop_id} pairs nearest first. */
+  private static final Comparator<double[]> BY_DISTANCE =
+      new Comparator<double[]>() {
+        public int compare(double[] a, double[] b) {
+          return Double.compare(a[0], b[0]);
+        }
+      };
+
+  /**
+   * Fills Stops with about as many stops as sf-muni has, spread over the
+   * city, and checks nearby-stop queries against a scan of every stop, then
+   * times both.
+   */
+  public void testNearbyStopsMatchAScanOfEveryStop() throws Exception {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+
+    final int STOPS = 3500;
+    final Random random = new Random(71);
+    final double[] stop_lats = new double[STOPS];
+    final double[] stop_lons = new double[STOPS];
+    SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      tables.beginTransaction();
+      try {
+        tables.execSQL("DELETE FROM Stops");
+        SQLiteStatement insert =
+            tables.compileStatement("INSERT INTO Stops (_id, tag, title,"
+                                    + " latitude, longitude, grid_cell)"
+                                    + " VALUES (?, ?, ?, ?, ?, ?)");
+        for (int i = 0; i < STOPS; i++) {
+          stop_lats[i] = 37.705 + random.nextDouble() * 0.105;
+          stop_lons[i] = -122.51 + random.nextDouble() * 0.15;
+          insert.bindLong(1, 10000 + i);
+          insert.bindLong(2, i);
+          insert.bindString(3, "Stop " + i);
+          insert.bindDouble(4, stop_lats[i]);
+          insert.bindDouble(5, stop_lons[i]);
+          insert.bindLong(6, StopGrid.cellOf(stop_lats[i], stop_lons[i]));
+          insert.execute();
+        }
+        insert.close();
+        tables.setTransactionSuccessful();
+      } finally {
+        tables.endTransaction();
+      }
+    } finally {
+      tables.close();
+    }
+
+    final int POINTS = 100;
+    final double RADIUS_M = 800;
+    final int LIMIT = 10;
+    final double[] lats = new double[POINTS];
+    final double[] lons = new double[POINTS];
+    for (int i = 0; i < POINTS; i++) {
+      lats[i] = 37.71 + random.nextDouble() * 0.09;
+      lons[i] = -122.50 + random.nextDouble() * 0.13;
+    }
+
+    // Every stop within the radius of each point, nearest first.
+    for (int i = 0; i < POINTS; i++) {
+      final ArrayList<double[]> expected = new ArrayList<double[]>();
+      for (int j = 0; j < STOPS; j++) {
+        final double distance_m =
+            StopGrid.distanceMeters(lats[i], lons[i], stop_lats[j],
+                stop_lons[j]);
+        if (distance_m <= RADIUS_M) {
+          expected.add(new double[] { distance_m, 10000 + j });
+        }
+      }
+      Collections.sort(expected, BY_DISTANCE);
+      Cursor nearby =
+          query(NextMuniProvider.buildNearbyStopsUri(lats[i], lons[i],
+              RADIUS_M, LIMIT));
+      if (expected.isEmpty()) {
+        assertNull(nearby);
+        continue;
+      }
+      assertEquals(Math.min(LIMIT, expected.size()), nearby.getCount());
+      final int stop_id = nearby.getColumnIndexOrThrow("stop_id");
+      for (int row = 0; nearby.moveToPosition(row); row++) {
+        assertEquals((long) expected.get(row)[1], nearby.getLong(stop_id));
+      }
+      nearby.close();
+    }
+
+    long[] nanos = new long[2];
+    for (int round = 0; round < 2; round++) {
+      // The first round warms up both.
+      long start = System.nanoTime();
+      for (int i = 0; i < POINTS; i++) {
+        Cursor nearby =
+            query(NextMuniProvider.buildNearbyStopsUri(lats[i], lons[i],
+                RADIUS_M, LIMIT));
+        if (nearby != null) {
+          nearby.close();
+        }
+      }
+      nanos[0] = System.nanoTime() - start;
+
+      // What finding the nearest stops cost before: read every stop and
+      // measure the distance to each.
+      start = System.nanoTime();
+      final float[] distance = new float[1];
+      tables = getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+      try {
+        for (int i = 0; i < POINTS; i++) {
+          Cursor stops =
+              tables.rawQuery("SELECT _id, title, latitude, longitude"
+                              + " FROM Stops", null);
+          final ArrayList<double[]> nearest = new ArrayList<double[]>();
+          for (stops.moveToFirst(); !stops.isAfterLast(); stops.moveToNext()) {
+            Location.distanceBetween(lats[i], lons[i], stops.getDouble(2),
+                stops.getDouble(3), distance);
+            if (distance[0] <= RADIUS_M) {
+              nearest.add(new double[] { distance[0], stops.getLong(0) });
+            }
+          }
+          stops.close();
+          Collections.sort(nearest, BY_DISTANCE);
+        }
+      } finally {
+        tables.close();
+      }
+      nanos[1] = System.nanoTime() - start;
+    }
+    Log.i("NextMuniProviderLoadTest", String.format(
+        "Nearest %d stops within %.0fm of %d stops: grid %d us, scan %d us"
+            + " per query", LIMIT, RADIUS_M, STOPS, nanos[0] / POINTS / 1000,
+        nanos[1] / POINTS / 1000));
+  }
+
+  private static final String[] ALL_ROUTES = { "6", "24", "38", "71" };
+
+  private String journalMode() {
+    final SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      return DatabaseUtils.stringForQuery(tables, "PRAGMA journal_mode", null);
+    } finally {
+      tables.close();
+    }
+  }
+
+  /**
+   * Switches the provider's database connection to or from the write-ahead
+   * log, through the SQLiteDatabase method Db enables it with. Nothing may be
+   * querying the provider during the switch.
+   */
+  private void setWriteAheadLogging(boolean enabled) throws Exception {
+    final Field db_field = NextMuniProvider.class.getDeclaredField("db");
+    db_field.setAccessible(true);
+    final SQLiteDatabase database =
+        ((SQLiteOpenHelper) db_field.get(getProvider()))
+            .getWritableDatabase();
+    SQLiteDatabase.class.getMethod(
+        enabled ? "enableWriteAheadLogging" : "disableWriteAheadLogging")
+        .invoke(database);
+  }
+
+  /**
+   * Makes 'route_tag' a month old and unknown, so the next query for it
+   * blocks on a full refresh.
+   */
+  private void makeRouteStale(SQLiteDatabase tables, String route_tag) {
+    tables.execSQL("UPDATE Routes SET last_direction_update_ms = 1,"
+                   + " config_digest = NULL WHERE tag == ?",
+        new Object[] { route_tag });
+    tables.execSQL("DELETE FROM HttpValidators");
+    getProvider().invalidateRouteGraphs();
+  }
+
+  /**
+   * Puts the 71 back to NextBusFixtures.ROUTE_CONFIG_71, which the other tests
+   * expect, after a test served it changing_route_configs.
+   */
+  private void restoreRoute71() {
+    m_server.setProfile(new FakeNextBusServer.Profile());
+    final SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    try {
+      makeRouteStale(tables, "71");
+    } finally {
+      tables.close();
+    }
+    query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, "71"))
+        .close();
+  }
+
+  /**
+   * Refreshes ALL_ROUTES one after another, each to a routeConfig that really
+   * changed, while ProviderLoadHarness reads through queries that go to SQLite
+   * rather than the in-memory route graphs.
+   */
+  private ProviderLoadHarness.Report readDuringRouteRefreshes(
+      final AtomicInteger refreshes) throws Exception {
+    final SQLiteDatabase tables =
+        getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+    final AtomicBoolean stop = new AtomicBoolean(false);
+    Thread refresher = new Thread(new Runnable() {
+      public void run() {
+        for (int i = 0; !stop.get(); i++) {
+          final String route_tag = ALL_ROUTES[i % ALL_ROUTES.length];
+          try {
+            makeRouteStale(tables, route_tag);
+            query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI,
+                route_tag)).close();
+            refreshes.incrementAndGet();
+          } catch (RuntimeException e) {
+            Log.w("NextMuniProviderLoadTest", "Refresh failed", e);
+          }
+        }
+      }
+    }, "Refresher");
+    refresher.start();
+    try {
+      List<Uri> uris = new ArrayList<Uri>();
+      uris.add(NextMuniProvider.ROUTES_URI);
+      uris.add(NextMuniProvider.buildNearbyStopsUri(37.76, -122.44, 2000, 10));
+      for (String route_tag : ALL_ROUTES) {
+        // The first stop of NextBusFixtures.routeConfig(route_tag, ...).
+        uris.add(Uri.withAppendedPath(NextMuniProvider.STOP_ROUTES_URI,
+            "1" + route_tag + "00"));
+      }
+      return new ProviderLoadHarness(getMockContentResolver()).run(uris, 4,
+          50);
+    } finally {
+      stop.set(true);
+      refresher.join();
+      tables.close();
+    }
+  }
+
+  /**
+   * Measures how long queries that read SQLite take while another thread keeps
+   * fully refreshing routes from a slow server, first with the write-ahead log
+   * and then with the rollback journal.
+   */
+  public void testReadLatencyDuringRouteRefreshes() throws Exception {
+    try {
+      SQLiteDatabase.class.getMethod("disableWriteAheadLogging");
+    } catch (NoSuchMethodException e) {
+      Log.i("NextMuniProviderLoadTest", "Can't switch the write-ahead log"
+                                        + " on and off before API 16;"
+                                        + " skipping");
+      return;
+    }
+    FakeNextBusServer.Profile profile = new FakeNextBusServer.Profile();
+    profile.latency_ms = 50;
+    profile.changing_route_configs = true;
+    m_server.setProfile(profile);
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+    for (String route_tag : ALL_ROUTES) {
+      query(Uri.withAppendedPath(NextMuniProvider.DIRECTIONS_URI, route_tag))
+          .close();
+    }
+
+    try {
+      final String wal_mode = journalMode();
+      assertEquals("wal", wal_mode.toLowerCase());
+      final AtomicInteger wal_refreshes = new AtomicInteger();
+      final ProviderLoadHarness.Report wal =
+          readDuringRouteRefreshes(wal_refreshes);
+
+      setWriteAheadLogging(false);
+      final String rollback_mode = journalMode();
+      final AtomicInteger rollback_refreshes = new AtomicInteger();
+      final ProviderLoadHarness.Report rollback =
+          readDuringRouteRefreshes(rollback_refreshes);
+
+      Log.i("NextMuniProviderLoadTest", "Reads during route refreshes,"
+                                        + " journal_mode=" + wal_mode + " ("
+                                        + wal_refreshes.get()
+                                        + " refreshes): " + wal
+                                        + "; journal_mode=" + rollback_mode
+                                        + " (" + rollback_refreshes.get()
+                                        + " refreshes): " + rollback);
+      assertFalse("wal".equalsIgnoreCase(rollback_mode));
+      assertEquals(0, wal.failures);
+      assertEquals(0, rollback.failures);
+      assertTrue(wal_refreshes.get() > 0);
+      assertTrue(rollback_refreshes.get() > 0);
+    } finally {
+      setWriteAheadLogging(true);
+      restoreRoute71();
+    }
+  }
+
+  public void testRoutePathsAreStored() throws Exception {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+
+    Cursor paths =
+        query(Uri.withAppendedPath(NextMuniProvider.PATHS_URI, "71"));
+    try {
+      assertNotNull(paths);
+      assertEquals(2, paths.getCount());
+      paths.moveToLast();
+      Polyline path =
+          Polyline.decode(paths.getBlob(paths.getColumnIndexOrThrow("points")));
+      assertEquals(2, path.size());
+      assertEquals(37771400, path.getLatitudeE6(0));
+      assertEquals(-122419300, path.getLongitudeE6(1));
+    } finally {
+      paths.close();
+    }
+  }
+
+  /**
+   * @return The number of points in the 71's first stored path.
+   */
+  private int firstPathSize() {
+    Cursor paths =
+        query(Uri.withAppendedPath(NextMuniProvider.PATHS_URI, "71"));
+    assertNotNull(paths);
+    try {
+      paths.moveToFirst();
+      return Polyline.decode(
+          paths.getBlob(paths.getColumnIndexOrThrow("points"))).size();
+    } finally {
+      paths.close();
+    }
+  }
+
+  public void testPathToleranceIsConfigurable() throws Exception {
+    Cursor routes = query(NextMuniProvider.ROUTES_URI);
+    assertNotNull(routes);
+    routes.close();
+    // The middle point of the 71's first path is about 7m off the line
+    // between its ends, so the default 5m tolerance keeps it.
+    assertEquals(3, firstPathSize());
+
+    getProvider().setPathTolerance(50);
+    try {
+      final SQLiteDatabase tables =
+          getMockContext().openOrCreateDatabase("NextMUNIDb", 0, null);
+      try {
+        makeRouteStale(tables, "71");
+      } finally {
+        tables.close();
+      }
+      assertEquals(2, firstPathSize());
+    } finally {
+      // Store the default-tolerance paths the other tests expect.
+      getProvider().setPathTolerance(5);
+      restoreRoute71();
+    }
+  }
+
+  public void testRetryErrorsAreRetriedThenFailFast() throws Exception {
+    FakeNextBusServer.Profile profile = new FakeNextBusServer.Profile();
+    profile.retry_error_rate = 1.0;
+    m_server.setProfile(profile);
+
+    final Uri stop = Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI,
+        "14016");
+    assertNull(query(stop));
+    final int attempts = m_server.getRequestCount("predictions");
+    assertTrue("Expected retries, got " + attempts, attempts > 1);
+
+    // An immediate requery fails without bothering the server.
+    assertNull(query(stop));
+    assertEquals(attempts, m_server.getRequestCount("predictions"));
+  }
+
+  public void testMalformedTrialResponseClosesTheTrial() throws Exception {
+    getProvider().setCircuitBreakerOpenMs(100);
+    FakeNextBusServer.Profile profile = new FakeNextBusServer.Profile();
+    profile.http_error_rate = 1.0;
+    m_server.setProfile(profile);
+
+    // Trip the predictions breaker. Each stop is new, so the failure cache
+    // doesn't short-circuit the requests.
+    assertNull(query(Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI,
+        "14016")));
+    assertNull(query(Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI,
+        "14017")));
+    assertNull(query(Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI,
+        "14018")));
+    m_server.resetCounters();
+    assertNull(query(Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI,
+        "14019")));
+    assertEquals(0, m_server.getRequestCount("predictions"));
+
+    // The trial request gets a response the parser can't read. That fails
+    // the query like any other bad document, but NextBus did answer, so it
+    // closes the trial and the breaker.
+    Thread.sleep(150);
+    profile = new FakeNextBusServer.Profile();
+    profile.malformed_predictions = true;
+    m_server.setProfile(profile);
+    final Uri malformed =
+        Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI, "15700");
+    assertNull(query(malformed));
+    assertEquals(1, m_server.getRequestCount("predictions"));
+
+    // The failure cache remembers the bad stop...
+    m_server.setProfile(new FakeNextBusServer.Profile());
+    assertNull(query(malformed));
+    assertEquals(1, m_server.getRequestCount("predictions"));
+
+    // ...while other stops go straight to NextBus again.
+    Cursor predictions =
+        query(Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI, "14000"));
+    assertNotNull(predictions);
+    predictions.close();
+    assertEquals(2, m_server.getRequestCount("predictions"));
+  }
+}
@@ -0,0 +1,92 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.Polyline;
+import junit.framework.TestCase;
+
+public class PolylineTest extends TestCase {
+  private static Polyline line(int... lat_lon_e6) {
+    final int count = lat_lon_e6.length / 2;
+    int[] lat_e6 = new int[count];
+    int[] lon_e6 = new int[count];
+    for (int i = 0; i < count; i++) {
+      lat_e6[i] = lat_lon_e6[2 * i];
+      lon_e6[i] = lat_lon_e6[2 * i + 1];
+    }
+    return new Polyline(lat_e6, lon_e6, count);
+  }
+
+  private static void assertSamePoints(Polyline expected, Polyline actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.getLatitudeE6(i), actual.getLatitudeE6(i));
+      assertEquals(expected.getLongitudeE6(i), actual.getLongitudeE6(i));
+    }
+  }
+
+  public void testEncodeRoundTrips() {
+    Polyline haight =
+        line(37769200, -122453100, 37769700, -122449100, 37770300,
+            -122445300, 37771400, -122437200, 0, 0, -90000000, 180000000);
+    assertSamePoints(haight, Polyline.decode(haight.encode()));
+    assertSamePoints(line(), Polyline.decode(line().encode()));
+  }
+
+  public void testEncodingIsCompact() {
+    // 100 points a few meters apart take about 3 bytes each after the first.
+    int[] lat_e6 = new int[100];
+    int[] lon_e6 = new int[100];
+    for (int i = 0; i < 100; i++) {
+      lat_e6[i] = 37769200 + i * 40;
+      lon_e6[i] = -122453100 + i * 90;
+    }
+    byte[] encoded = new Polyline(lat_e6, lon_e6, 100).encode();
+    assertTrue("Encoded to " + encoded.length + " bytes",
+        encoded.length < 10 + 99 * 4);
+  }
+
+  public void testDecodeRejectsGarbage() {
+    try {
+      Polyline.decode(new byte[] { 5, 1 });
+      fail("Decoded a truncated polyline");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void testSimplifyDropsPointsWithinTolerance() {
+    // A straight east-west street with a 1-microdegree (~0.1m) wobble, and
+    // then a turn north.
+    Polyline street =
+        line(37770000, -122450000, 37770001, -122449000, 37770000,
+            -122448000, 37769999, -122447000, 37770000, -122446000,
+            37775000, -122446000);
+    Polyline simplified = street.simplify(5);
+    assertSamePoints(line(37770000, -122450000, 37770000, -122446000,
+        37775000, -122446000), simplified);
+
+    assertSame(street, street.simplify(0));
+  }
+
+  public void testSimplifyKeepsPointsBeyondTolerance() {
+    // The middle point is ~55m off the line between the ends.
+    Polyline bend =
+        line(37770000, -122450000, 37770500, -122448000, 37770000,
+            -122446000);
+    assertSamePoints(bend, bend.simplify(10));
+    assertEquals(2, bend.simplify(100).size());
+  }
+
+  public void testSimplifyKeepsSpursPastTheEndpoints() {
+    // Heads ~180m east, turns around, and ends ~90m east of the start, so the
+    // far point is on the line through the ends but well past the last one.
+    Polyline spur =
+        line(37770000, -122450000, 37770000, -122448000, 37770000,
+            -122449000);
+    assertSamePoints(spur, spur.simplify(10));
+    // And likewise before the first point.
+    Polyline reversed =
+        line(37770000, -122449000, 37770000, -122450000, 37770000,
+            -122448000);
+    assertSamePoints(reversed, reversed.simplify(10));
+  }
+}
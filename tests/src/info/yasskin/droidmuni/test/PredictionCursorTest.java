@@ -0,0 +1,147 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.PredictionCursor;
+import android.database.CursorWindow;
+import junit.framework.TestCase;
+
+public class PredictionCursorTest extends TestCase {
+  /**
+   * @return 'size' predictions a minute apart starting at 'start_ms', with
+   *         direction titles of 'title_length' characters.
+   */
+  private static PredictionCursor.Columns columns(int size, long start_ms,
+      int title_length) {
+    final long[] times = new long[size];
+    final String[] route_tags = new String[size];
+    final String[] direction_tags = new String[size];
+    final String[] direction_titles = new String[size];
+    final String[] stop_tags = new String[size];
+    final StringBuilder padding = new StringBuilder();
+    while (padding.length() < title_length) {
+      padding.append('x');
+    }
+    for (int i = 0; i < size; i++) {
+      times[i] = start_ms + i * 60 * 1000;
+      route_tags[i] = i % 2 == 0 ? "71" : "6";
+      direction_tags[i] = route_tags[i] + "__IB" + i;
+      direction_titles[i] = "Inbound " + i + padding;
+      stop_tags[i] = Integer.toString(4000 + i);
+    }
+    return new PredictionCursor.Columns(times, route_tags, direction_tags,
+        direction_titles, stop_tags);
+  }
+
+  private static PredictionCursor.Columns columns(long... times) {
+    final int size = times.length;
+    final String[] tags = new String[size];
+    for (int i = 0; i < size; i++) {
+      tags[i] = "71";
+    }
+    return new PredictionCursor.Columns(times, tags, tags, tags, tags);
+  }
+
+  /**
+   * Checks that every row in 'window' matches the same row of 'cursor'.
+   */
+  private static void assertWindowMatches(PredictionCursor cursor,
+      CursorWindow window) {
+    final int start = window.getStartPosition();
+    for (int row = start; row < start + window.getNumRows(); row++) {
+      assertTrue(cursor.moveToPosition(row));
+      assertEquals(row, window.getLong(row, 0));
+      for (int column = 1; column < 5; column++) {
+        assertEquals(cursor.getString(column), window.getString(row, column));
+      }
+      assertEquals(cursor.getLong(5), window.getLong(row, 5));
+    }
+  }
+
+  public void testFillWindowFromASlice() {
+    final long now = System.currentTimeMillis();
+    final PredictionCursor.Columns columns = columns(10, now, 0);
+    final PredictionCursor cursor =
+        new PredictionCursor(columns, 3, 8, "stop_id", null);
+    assertEquals(5, cursor.getCount());
+
+    final CursorWindow window = new CursorWindow(false);
+    try {
+      cursor.fillWindow(0, window);
+      assertEquals(0, window.getStartPosition());
+      assertEquals(5, window.getNumRows());
+      assertWindowMatches(cursor, window);
+      // Row 0 is the slice's first prediction, not the columns' first.
+      assertEquals(now + 3 * 60 * 1000, window.getLong(0, 5));
+      assertEquals("4003", window.getString(0, 4));
+
+      cursor.fillWindow(2, window);
+      assertEquals(2, window.getStartPosition());
+      assertEquals(3, window.getNumRows());
+      assertWindowMatches(cursor, window);
+      assertEquals(now + 5 * 60 * 1000, window.getLong(2, 5));
+    } finally {
+      window.releaseReference();
+    }
+  }
+
+  public void testFillWindowUsesTheFixedStop() {
+    final PredictionCursor cursor =
+        new PredictionCursor(columns(4, 0, 0), 1, 4, "stop_id", "14016");
+    final CursorWindow window = new CursorWindow(false);
+    try {
+      cursor.fillWindow(1, window);
+      assertEquals(2, window.getNumRows());
+      assertWindowMatches(cursor, window);
+      assertEquals("14016", window.getString(2, 4));
+    } finally {
+      window.releaseReference();
+    }
+  }
+
+  public void testFillWindowStopsAtAFullWindow() {
+    // Rows of about 256KB overflow the window's megabyte or two after a few
+    // rows.
+    final PredictionCursor.Columns columns = columns(40, 0, 256 * 1024);
+    final PredictionCursor cursor =
+        new PredictionCursor(columns, 1, 40, "stop_tag", null);
+    final CursorWindow window = new CursorWindow(false);
+    try {
+      cursor.fillWindow(5, window);
+      assertEquals(5, window.getStartPosition());
+      final int rows = window.getNumRows();
+      assertTrue("Fit " + rows + " rows", rows > 0 && rows < 34);
+      // The row that didn't fit was freed, so every remaining row is whole.
+      assertWindowMatches(cursor, window);
+    } finally {
+      window.releaseReference();
+    }
+  }
+
+  public void testFillWindowPastTheEndIsEmpty() {
+    final PredictionCursor cursor =
+        new PredictionCursor(columns(3, 0, 0), 0, 3, "stop_id", null);
+    final CursorWindow window = new CursorWindow(false);
+    try {
+      cursor.fillWindow(3, window);
+      assertEquals(0, window.getNumRows());
+    } finally {
+      window.releaseReference();
+    }
+  }
+
+  public void testFirstAtOrAfter() {
+    assertEquals(0, columns().firstAtOrAfter(100));
+
+    final PredictionCursor.Columns columns = columns(10, 20, 20, 20, 30);
+    // All in the future.
+    assertEquals(0, columns.firstAtOrAfter(Long.MIN_VALUE));
+    assertEquals(0, columns.firstAtOrAfter(10));
+    // All past.
+    assertEquals(5, columns.firstAtOrAfter(31));
+    assertEquals(5, columns.firstAtOrAfter(Long.MAX_VALUE));
+    // Equal times count as not yet past, and the first of a tie wins.
+    assertEquals(1, columns.firstAtOrAfter(20));
+    assertEquals(1, columns.firstAtOrAfter(11));
+    assertEquals(4, columns.firstAtOrAfter(21));
+    assertEquals(4, columns.firstAtOrAfter(30));
+  }
+}
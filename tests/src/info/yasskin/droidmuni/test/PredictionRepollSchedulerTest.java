@@ -0,0 +1,85 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.PredictionRepollScheduler;
+import info.yasskin.droidmuni.ProximityRepollPolicy;
+import info.yasskin.droidmuni.RepollPolicy;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+public class PredictionRepollSchedulerTest extends AndroidTestCase {
+  private static class TestScheduler extends PredictionRepollScheduler {
+    public TestScheduler(Handler handler, Runnable poll, RepollPolicy policy) {
+      super(handler, poll, policy);
+    }
+
+    public long fake_now;
+
+    protected long now() {
+      return fake_now;
+    }
+
+    /**
+     * @return the time the super class has scheduled the next poll.
+     */
+    public long getNextPollTime() {
+      return m_next_poll_time;
+    }
+  }
+
+  private static final long NOW = 10000 * 1000;
+
+  private TestScheduler m_scheduler;
+
+  public void setUp() {
+    m_scheduler =
+        new TestScheduler(new Handler(Looper.getMainLooper()), new Runnable() {
+          public void run() {
+          }
+        }, new ProximityRepollPolicy());
+    m_scheduler.fake_now = NOW;
+  }
+
+  public void tearDown() {
+    m_scheduler.stop();
+  }
+
+  public void testPolicyIntervals() {
+    RepollPolicy policy = new ProximityRepollPolicy();
+    assertEquals(30 * 1000, policy.nextPollDelayMs(NOW, NOW + 2 * 60000));
+    assertEquals(60 * 1000, policy.nextPollDelayMs(NOW, NOW + 10 * 60000));
+    assertEquals(2 * 60 * 1000, policy.nextPollDelayMs(NOW, NOW + 20 * 60000));
+    assertEquals(5 * 60 * 1000, policy.nextPollDelayMs(NOW, NOW + 45 * 60000));
+    assertEquals(5 * 60 * 1000,
+        policy.nextPollDelayMs(NOW, RepollPolicy.NO_ARRIVAL));
+  }
+
+  public void testSchedulesFromSoonestFutureArrival() {
+    // The first prediction has already passed, so the 3-minute one decides.
+    m_scheduler.onPredictions(new CursorLiteral("_id", "predicted_time").row(
+        0, NOW - 60000).row(1, NOW + 20 * 60000).row(2, NOW + 3 * 60000));
+    assertEquals(NOW + 30 * 1000, m_scheduler.getNextPollTime());
+  }
+
+  public void testBacksOffWithoutPredictions() {
+    m_scheduler.onPredictions(new CursorLiteral("_id", "predicted_time"));
+    assertEquals(NOW + 5 * 60 * 1000, m_scheduler.getNextPollTime());
+  }
+
+  public void testPauseAndStop() {
+    m_scheduler.onPredictions(new CursorLiteral("_id", "predicted_time").row(
+        0, NOW + 10 * 60000));
+    assertEquals(NOW + 60 * 1000, m_scheduler.getNextPollTime());
+
+    m_scheduler.pause();
+    assertEquals(-1, m_scheduler.getNextPollTime());
+    // New results while hidden don't restart polling.
+    m_scheduler.onPredictions(new CursorLiteral("_id", "predicted_time").row(
+        0, NOW + 10 * 60000));
+    assertEquals(-1, m_scheduler.getNextPollTime());
+
+    m_scheduler.stop();
+    m_scheduler.resume();
+    assertEquals(-1, m_scheduler.getNextPollTime());
+  }
+}
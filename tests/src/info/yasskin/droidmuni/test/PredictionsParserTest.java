@@ -0,0 +1,163 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.PredictionsParser;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+public class PredictionsParserTest extends TestCase {
+  @Override
+  protected void tearDown() throws Exception {
+    PredictionsParser.setScannerEnabled(true);
+    super.tearDown();
+  }
+
+  private static ByteArrayInputStream stream(String document)
+      throws Exception {
+    return new ByteArrayInputStream(document.getBytes("UTF-8"));
+  }
+
+  public void testParseReplacesThePreviousDocument() throws Exception {
+    final long now = System.currentTimeMillis();
+    PredictionsParser parser = new PredictionsParser();
+    parser.parse(stream(NextBusFixtures.multiPredictions(Arrays.asList(
+        "71|4016", "6|4016", "71|4017"), now)));
+    assertEquals(6, parser.getPredictions().size());
+    assertEquals(2, parser.getDirectionTag2Title().size());
+
+    parser.parse(stream(NextBusFixtures.predictions("4016", now)));
+    assertEquals(5, parser.getPredictions().size());
+    assertEquals(2, parser.getDirectionTag2Title().size());
+    assertTrue(parser.getDirectionTag2Title().containsKey("06_IB3"));
+  }
+
+  public void testResetForgetsEverything() throws Exception {
+    PredictionsParser parser = new PredictionsParser();
+    parser.parse(stream(NextBusFixtures.predictions("4016",
+        System.currentTimeMillis())));
+    assertEquals("All data copyright San Francisco Muni 2011.",
+        parser.getCopyright());
+
+    parser.reset();
+    assertTrue(parser.getPredictions().isEmpty());
+    assertTrue(parser.getDirectionTag2Title().isEmpty());
+    assertNull(parser.getCopyright());
+  }
+
+  public void testBadEpochTimeIsAParseError() throws Exception {
+    final String document =
+        NextBusFixtures.predictions("4016", System.currentTimeMillis())
+            .replace("epochTime=\"", "epochTime=\"soon");
+    PredictionsParser parser = new PredictionsParser();
+    parser.parse(stream(document));
+    assertEquals("PARSE_ERROR", parser.getResult().name());
+
+    PredictionsParser.setScannerEnabled(false);
+    parser.reset();
+    parser.parse(stream(document));
+    assertEquals("PARSE_ERROR", parser.getResult().name());
+  }
+
+  public void testParsersOnManyThreads() throws Exception {
+    final String document =
+        NextBusFixtures.predictions("4016", System.currentTimeMillis());
+    final int[] counts = new int[4];
+    Thread[] threads = new Thread[counts.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int index = t;
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (int i = 0; i < 50; i++) {
+              PredictionsParser parser = new PredictionsParser();
+              parser.parse(stream(document));
+              counts[index] += parser.getPredictions().size();
+            }
+          } catch (Exception e) {
+            counts[index] = -1;
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+      assertEquals(50 * 5, counts[t]);
+    }
+  }
+
+  /**
+   * @return What 'parser' got out of 'document', as a string to compare.
+   */
+  private static String parseWith(boolean scanner, String document)
+      throws Exception {
+    PredictionsParser.setScannerEnabled(scanner);
+    PredictionsParser parser = new PredictionsParser();
+    parser.parse(stream(document));
+    return parser.getCopyright() + "\n" + parser.getPredictions() + "\n"
+           + parser.getRuns() + "\n" + parser.getDirectionTag2Title();
+  }
+
+  public void testScannerMatchesThePullParser() throws Exception {
+    final long now = System.currentTimeMillis();
+    final String[] documents =
+        {
+         NextBusFixtures.predictions("4016", now),
+         NextBusFixtures.multiPredictions(Arrays.asList("71|4016", "6|4016",
+             "71|4017"), now),
+         // Single quotes, entities, an unknown element and <prediction>
+         // with content.
+         NextBusFixtures.predictions("4016", now).replace(
+             "Inbound to Ferry Plaza", "Inbound to Haight &amp; Ashbury")
+             .replace("<keyForNextTime", "<message text='Hi'><a/></message>"
+                                         + "<keyForNextTime"),
+         // Comments and errors fall back to the pull parser.
+         NextBusFixtures.predictions("4016", now).replace("<body",
+             "<!-- A comment --><body"), NextBusFixtures.RETRY_ERROR,
+         NextBusFixtures.FATAL_ERROR,
+         NextBusFixtures.predictions("4016", now).replace("</body>", "") };
+    for (String document : documents) {
+      assertEquals(document, parseWith(false, document),
+          parseWith(true, document));
+    }
+  }
+
+  /**
+   * Compares how long the scanner and the pull parser take to parse a
+   * 20-stop predictionsForMultiStops poll. This stands in for a JMH
+   * comparison, which doesn't run on Android.
+   */
+  public void testScannerBenchmark() throws Exception {
+    List<String> stops = new ArrayList<String>();
+    for (int i = 0; i < 20; i++) {
+      stops.add((i % 4 == 0 ? "71" : "6") + "|" + (4000 + i));
+    }
+    final byte[] poll =
+        NextBusFixtures.multiPredictions(stops, System.currentTimeMillis())
+            .getBytes("UTF-8");
+    final int POLLS = 200;
+    final PredictionsParser parser = new PredictionsParser();
+
+    long[] nanos = new long[2];
+    for (int round = 0; round < 2; round++) {
+      // The first round warms up both.
+      for (int scanner = 0; scanner < 2; scanner++) {
+        PredictionsParser.setScannerEnabled(scanner == 1);
+        final long start = System.nanoTime();
+        for (int i = 0; i < POLLS; i++) {
+          parser.parse(new ByteArrayInputStream(poll));
+          assertEquals(40, parser.getPredictions().size());
+        }
+        nanos[scanner] = System.nanoTime() - start;
+      }
+    }
+    Log.i("PredictionsParserTest", String.format(
+        "Per %d-byte poll: pull parser %d us, scanner %d us.", poll.length,
+        nanos[0] / POLLS / 1000, nanos[1] / POLLS / 1000));
+  }
+}
@@ -0,0 +1,114 @@
+package info.yasskin.droidmuni.test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Drives ContentResolver.query() from many threads at once and reports
+ * throughput and latency. Use with FakeNextBusServer to load-test
+ * NextMuniProvider without touching the real NextBus feed.
+ */
+public class ProviderLoadHarness {
+  public static class Report {
+    public int queries;
+    public int failures;
+    public long elapsed_ms;
+    public long p50_latency_us;
+    public long p99_latency_us;
+    public long max_latency_us;
+
+    public double queriesPerSecond() {
+      return elapsed_ms == 0 ? 0 : queries * 1000.0 / elapsed_ms;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d queries (%d failed) in %d ms: %.1f/s,"
+                           + " p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+          queries, failures, elapsed_ms, queriesPerSecond(),
+          p50_latency_us / 1000.0, p99_latency_us / 1000.0,
+          max_latency_us / 1000.0);
+    }
+  }
+
+  private final ContentResolver m_resolver;
+
+  public ProviderLoadHarness(ContentResolver resolver) {
+    m_resolver = resolver;
+  }
+
+  /**
+   * Starts 'threads' threads that each run 'queries_per_thread' queries,
+   * cycling through 'uris', and waits for them all to finish. A query fails if
+   * it returns null or throws.
+   */
+  public Report run(final List<Uri> uris, int threads,
+      final int queries_per_thread) throws InterruptedException {
+    final long[] latencies_ns = new long[threads * queries_per_thread];
+    final AtomicInteger failures = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+
+    for (int t = 0; t < threads; t++) {
+      final int thread_index = t;
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < queries_per_thread; i++) {
+              final Uri uri =
+                  uris.get((thread_index + i * 7) % uris.size());
+              final long begin = System.nanoTime();
+              try {
+                Cursor result = m_resolver.query(uri, null, null, null, null);
+                if (result == null) {
+                  failures.incrementAndGet();
+                } else {
+                  result.getCount();
+                  result.close();
+                }
+              } catch (RuntimeException e) {
+                Log.w("ProviderLoadHarness", "Query failed: " + uri, e);
+                failures.incrementAndGet();
+              }
+              latencies_ns[thread_index * queries_per_thread + i] =
+                  System.nanoTime() - begin;
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }, "ProviderLoadHarness-" + t).start();
+    }
+
+    final long begin = System.currentTimeMillis();
+    start.countDown();
+    done.await();
+
+    Report report = new Report();
+    report.elapsed_ms = System.currentTimeMillis() - begin;
+    report.queries = latencies_ns.length;
+    report.failures = failures.get();
+    Arrays.sort(latencies_ns);
+    report.p50_latency_us = percentile(latencies_ns, 0.50) / 1000;
+    report.p99_latency_us = percentile(latencies_ns, 0.99) / 1000;
+    report.max_latency_us = latencies_ns[latencies_ns.length - 1] / 1000;
+    return report;
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    final int index =
+        Math.min(sorted.length - 1,
+            (int) Math.ceil(fraction * sorted.length) - 1);
+    return sorted[Math.max(0, index)];
+  }
+}
@@ -0,0 +1,51 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.StopGrid;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class StopGridTest extends TestCase {
+  private static boolean inRanges(long cell, long[] ranges) {
+    for (int i = 0; i < ranges.length; i += 2) {
+      if (ranges[i] <= cell && cell <= ranges[i + 1]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void testNeighboringCellsInARowAreConsecutive() {
+    final long cell = StopGrid.cellOf(37.7751, -122.4193);
+    assertEquals(cell + 1, StopGrid.cellOf(37.7751,
+        -122.4193 + StopGrid.CELL_DEGREES));
+    assertTrue(StopGrid.cellOf(37.7751 + StopGrid.CELL_DEGREES, -122.4193)
+               > cell + 1);
+  }
+
+  public void testRangesCoverEveryPointWithinTheRadius() {
+    final Random random = new Random(71);
+    for (int i = 0; i < 1000; i++) {
+      final double lat = 37.70 + random.nextDouble() * 0.11;
+      final double lon = -122.515 + random.nextDouble() * 0.16;
+      final double radius_m = 50 + random.nextDouble() * 2000;
+      final long[] ranges = StopGrid.cellRangesWithin(lat, lon, radius_m);
+      for (int j = 0; j < 20; j++) {
+        final double stop_lat = lat + (random.nextDouble() - 0.5) * 0.04;
+        final double stop_lon = lon + (random.nextDouble() - 0.5) * 0.05;
+        if (StopGrid.distanceMeters(lat, lon, stop_lat, stop_lon)
+            <= radius_m) {
+          assertTrue(inRanges(StopGrid.cellOf(stop_lat, stop_lon), ranges));
+        }
+      }
+    }
+  }
+
+  public void testDistanceIsCloseToTheGreatCircle() {
+    // Market St & Van Ness Ave to the Ferry Building is 3195 m by the
+    // haversine formula.
+    assertEquals(3195, StopGrid.distanceMeters(37.7751, -122.4193, 37.7955,
+        -122.3937), 5);
+  }
+}
@@ -0,0 +1,120 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.PredictionsParser;
+import info.yasskin.droidmuni.TagInterner;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import android.os.Debug;
+import android.util.Log;
+
+public class TagInternerTest extends TestCase {
+  @Override
+  protected void tearDown() throws Exception {
+    TagInterner.setEnabled(true);
+    super.tearDown();
+  }
+
+  public void testReturnsCanonicalCopies() {
+    String first = TagInterner.intern(new String("71__IB1"));
+    String second = TagInterner.intern(new String("71__IB1"));
+    assertEquals("71__IB1", second);
+    assertSame(first, second);
+    assertNull(TagInterner.intern(null));
+  }
+
+  public void testDisabledPassesThrough() {
+    TagInterner.setEnabled(false);
+    String tag = new String("71__OB1");
+    assertSame(tag, TagInterner.intern(tag));
+    assertNotSame(tag, TagInterner.intern(new String("71__OB1")));
+  }
+
+  public void testStaysBoundedUnderManyTags() {
+    // Far more tags than slots must neither fail nor return wrong values.
+    for (int i = 0; i < 100000; i++) {
+      String tag = "block" + i;
+      assertEquals(tag, TagInterner.intern(tag));
+    }
+  }
+
+  private static class PollStats {
+    long allocations;
+    long allocated_bytes;
+    int retained_tag_strings;
+  }
+
+  /**
+   * Parses 'polls' copies of 'poll', keeping the results like the prediction
+   * cache would, and counts allocations and the distinct tag Strings kept.
+   */
+  private static PollStats parsePolls(byte[] poll, int polls) {
+    final List<PredictionsParser> retained =
+        new ArrayList<PredictionsParser>(polls);
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocCount();
+    Debug.resetThreadAllocSize();
+    for (int i = 0; i < polls; i++) {
+      PredictionsParser parser = new PredictionsParser();
+      parser.parse(new ByteArrayInputStream(poll));
+      retained.add(parser);
+    }
+    Debug.stopAllocCounting();
+
+    PollStats stats = new PollStats();
+    stats.allocations = Debug.getThreadAllocCount();
+    stats.allocated_bytes = Debug.getThreadAllocSize();
+    IdentityHashMap<String, Boolean> distinct =
+        new IdentityHashMap<String, Boolean>();
+    for (PredictionsParser parser : retained) {
+      for (Map.Entry<String, String> entry : parser.getDirectionTag2Title()
+          .entrySet()) {
+        distinct.put(entry.getKey(), true);
+        distinct.put(entry.getValue(), true);
+      }
+    }
+    stats.retained_tag_strings = distinct.size();
+    return stats;
+  }
+
+  /**
+   * Measures a 20-stop predictionsForMultiStops poll with and without
+   * interning. The pull parser allocates a String per attribute either way;
+   * interning turns the copies kept by cached predictions into short-lived
+   * garbage, so what it saves shows up in retained Strings.
+   */
+  public void testPredictionPollAllocationBenchmark() throws Exception {
+    List<String> stops = new ArrayList<String>();
+    for (int i = 0; i < 20; i++) {
+      stops.add((i % 4 == 0 ? "71" : "6") + "|" + (4000 + i));
+    }
+    final byte[] poll =
+        NextBusFixtures.multiPredictions(stops, System.currentTimeMillis())
+            .getBytes("UTF-8");
+    final int POLLS = 50;
+
+    parsePolls(poll, 5); // Warm up.
+    TagInterner.setEnabled(false);
+    PollStats plain = parsePolls(poll, POLLS);
+    TagInterner.setEnabled(true);
+    TagInterner.clear();
+    PollStats interned = parsePolls(poll, POLLS);
+
+    Log.i("TagInternerTest", String.format(
+        "Per poll without interning: %d allocations, %d bytes;"
+            + " with: %d allocations, %d bytes."
+            + " Tag strings retained by %d polls: %d without, %d with.",
+        plain.allocations / POLLS, plain.allocated_bytes / POLLS,
+        interned.allocations / POLLS, interned.allocated_bytes / POLLS, POLLS,
+        plain.retained_tag_strings, interned.retained_tag_strings));
+
+    // Two direction tags, 71__IB1 and 6__IB1, which share a title.
+    assertEquals(3, interned.retained_tag_strings);
+    assertTrue(plain.retained_tag_strings >= POLLS * 2);
+  }
+}